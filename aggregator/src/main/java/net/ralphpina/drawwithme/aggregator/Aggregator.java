@@ -0,0 +1,279 @@
+package net.ralphpina.drawwithme.aggregator;
+
+import com.google.protobuf.nano.InvalidProtocolBufferNanoException;
+
+import net.ralphpina.drawwithme.ProtobufMessages.Presence;
+import net.ralphpina.drawwithme.ProtobufMessages.StrokeCommit;
+import net.ralphpina.drawwithme.ProtobufMessages.StrokeRequest;
+import net.ralphpina.drawwithme.ProtobufMessages.StrokeResponse;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static net.ralphpina.drawwithme.ProtobufMessages.Presence.DISCONNECTED;
+
+/**
+ * Headless service that keeps the authoritative stroke history of every room.
+ * <p>
+ * It listens on the same topics as the app, where a room is the last level of the drawing topic
+ * (the app draws in {@code drawwithme/drawing/change}, so in room "change"), and answers
+ * {@link StrokeRequest}s with snapshots or sequence ranges so reconnecting clients can catch up.
+ * Every stroke it commits is announced on {@code drawwithme/aggregator/committed/<room>}, so
+ * clients know which sequences the strokes they drew live were given.
+ * <p>
+ * Usage: {@code aggregator [serverUri] [threads] [maxStrokesPerRoom] [maxMegabytes]}, where the
+ * last one bounds the strokes held across every room.
+ */
+public final class Aggregator implements MqttCallbackExtended, Stripe.Responder {
+
+    private static final Logger LOG = Logger.getLogger(Aggregator.class.getName());
+
+    private final static String SERVER_URI      = "tcp://localhost:1883";
+    private final static String STATUS_TOPIC    = "drawwithme/friends/status";
+    private final static String DRAWING_PREFIX  = "drawwithme/drawing/";
+    private final static String DRAWING_TOPICS  = DRAWING_PREFIX + "#";
+    private final static String REQUEST_TOPIC   = "drawwithme/aggregator/request";
+    private final static String RESPONSE_PREFIX = "drawwithme/aggregator/response/";
+    private final static String COMMIT_PREFIX   = "drawwithme/aggregator/committed/";
+
+    private static final int  QUEUE_CAPACITY       = 10000;
+    private static final int  MAX_STROKES_PER_ROOM = 100000;
+    private static final int  MAX_MEGABYTES        = 512;
+    private static final long ROOM_IDLE_MS         = TimeUnit.HOURS.toMillis(6);
+    private static final int  MAX_INFLIGHT         = 1000;
+    private static final long STATS_INTERVAL_S     = 10;
+
+    private final MqttAsyncClient          client;
+    private final Stripe[]                 stripes;
+    private final AtomicLong               actionsFolded  = new AtomicLong();
+    private final AtomicLong               actionsDropped = new AtomicLong();
+    private final ScheduledExecutorService stats;
+
+    public static void main(String[] args) throws Exception {
+        final String serverUri = args.length > 0 ? args[0] : SERVER_URI;
+        final int threads = args.length > 1 ? Integer.parseInt(args[1])
+                                            : Runtime.getRuntime()
+                                                     .availableProcessors();
+        final int maxStrokesPerRoom = args.length > 2 ? Integer.parseInt(args[2])
+                                                      : MAX_STROKES_PER_ROOM;
+        final int maxMegabytes = args.length > 3 ? Integer.parseInt(args[3]) : MAX_MEGABYTES;
+
+        final Aggregator aggregator = new Aggregator(serverUri,
+                                                     threads,
+                                                     maxStrokesPerRoom,
+                                                     maxMegabytes);
+        Runtime.getRuntime()
+               .addShutdownHook(new Thread() {
+                   @Override
+                   public void run() {
+                       aggregator.stop();
+                   }
+               });
+        aggregator.start();
+    }
+
+    public Aggregator(String serverUri, int threads, int maxStrokesPerRoom, int maxMegabytes)
+            throws MqttException {
+        client = new MqttAsyncClient(serverUri,
+                                     "drawwithme-aggregator-" + UUID.randomUUID(),
+                                     new MemoryPersistence());
+        client.setCallback(this);
+
+        stats = Executors.newSingleThreadScheduledExecutor();
+        stripes = new Stripe[threads];
+        for (int i = 0; i < threads; i++) {
+            stripes[i] = new Stripe(i,
+                                    QUEUE_CAPACITY,
+                                    maxStrokesPerRoom,
+                                    maxMegabytes * 1024L * 1024L / threads,
+                                    ROOM_IDLE_MS,
+                                    this,
+                                    actionsFolded,
+                                    actionsDropped);
+        }
+    }
+
+    // ===== CONNECTING ============================================================================
+
+    public void start() throws MqttException {
+        final MqttConnectOptions options = new MqttConnectOptions();
+        options.setAutomaticReconnect(true);
+        options.setCleanSession(true);
+        options.setMaxInflight(MAX_INFLIGHT);
+
+        LOG.info("Connecting to " + client.getServerURI());
+        client.connect(options)
+              .waitForCompletion();
+
+        stats.scheduleAtFixedRate(new Runnable() {
+                                      private long lastFolded;
+                                      private long lastDropped;
+
+                                      @Override
+                                      public void run() {
+                                          final long folded = actionsFolded.get();
+                                          final long dropped = actionsDropped.get();
+                                          logStats(folded - lastFolded,
+                                                   dropped - lastDropped);
+                                          lastFolded = folded;
+                                          lastDropped = dropped;
+                                      }
+                                  },
+                                  STATS_INTERVAL_S,
+                                  STATS_INTERVAL_S,
+                                  TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        stats.shutdownNow();
+        try {
+            if (client.isConnected()) {
+                client.disconnect()
+                      .waitForCompletion();
+            }
+        } catch (MqttException e) {
+            LOG.log(Level.WARNING,
+                    "=== disconnect === " + e.getMessage(),
+                    e);
+        }
+        for (Stripe stripe : stripes) {
+            try {
+                stripe.shutdown();
+            } catch (InterruptedException e) {
+                Thread.currentThread()
+                      .interrupt();
+                return;
+            }
+        }
+    }
+
+    private void subscribeToTopics() {
+        try {
+            // clean session, so this has to be redone after every reconnect
+            client.subscribe(new String[]{STATUS_TOPIC, DRAWING_TOPICS, REQUEST_TOPIC},
+                             new int[]{0, 0, 0});
+        } catch (MqttException e) {
+            LOG.log(Level.SEVERE,
+                    "=== subscribe === " + e.getMessage(),
+                    e);
+        }
+    }
+
+    // ===== CALL BACK =============================================================================
+
+    @Override
+    public void connectComplete(boolean reconnect, String serverURI) {
+        LOG.info((reconnect ? "Reconnected to " : "Connected to ") + serverURI);
+        subscribeToTopics();
+    }
+
+    @Override
+    public void connectionLost(Throwable cause) {
+        LOG.log(Level.WARNING,
+                "Connection lost",
+                cause);
+    }
+
+    @Override
+    public void messageArrived(String topic, MqttMessage message) {
+        final long now = System.currentTimeMillis();
+        try {
+            if (topic.startsWith(DRAWING_PREFIX)) {
+                if (message.isRetained()) {
+                    // clients publish drawing actions retained, so subscribing hands us the last
+                    // action of every room from whenever it was sent. A stale TOUCH_DOWN would open
+                    // a stroke that never ends.
+                    return;
+                }
+                final String room = topic.substring(DRAWING_PREFIX.length());
+                stripeFor(room).onDrawAction(room,
+                                             message.getPayload(),
+                                             now);
+            } else if (STATUS_TOPIC.equals(topic)) {
+                final Presence presence = Presence.parseFrom(message.getPayload());
+                if (presence.activeStatus == DISCONNECTED) {
+                    for (Stripe stripe : stripes) {
+                        stripe.onClientDisconnected(presence.clientId,
+                                                    now);
+                    }
+                }
+            } else if (REQUEST_TOPIC.equals(topic)) {
+                final StrokeRequest request = StrokeRequest.parseFrom(message.getPayload());
+                stripeFor(request.room).onRequest(request);
+            }
+        } catch (InvalidProtocolBufferNanoException e) {
+            LOG.log(Level.WARNING,
+                    "Dropping malformed message on " + topic,
+                    e);
+        }
+    }
+
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken token) {
+        // noop
+    }
+
+    // ===== RESPONDING ============================================================================
+
+    @Override
+    public void respond(String clientId, StrokeResponse response) {
+        try {
+            client.publish(RESPONSE_PREFIX + clientId,
+                           StrokeResponse.toByteArray(response),
+                           0,
+                           false);
+        } catch (MqttException e) {
+            LOG.log(Level.WARNING,
+                    "Error responding to " + clientId + ": " + e.getMessage(),
+                    e);
+        }
+    }
+
+    @Override
+    public void committed(StrokeCommit commit) {
+        try {
+            // QoS 0 like the drawing itself, a client that misses one just catches up further back
+            client.publish(COMMIT_PREFIX + commit.room,
+                           StrokeCommit.toByteArray(commit),
+                           0,
+                           false);
+        } catch (MqttException e) {
+            LOG.log(Level.WARNING,
+                    "Error announcing a stroke in " + commit.room + ": " + e.getMessage(),
+                    e);
+        }
+    }
+
+    // ===== HELPERS ===============================================================================
+
+    private Stripe stripeFor(String room) {
+        return stripes[(room.hashCode() & Integer.MAX_VALUE) % stripes.length];
+    }
+
+    private void logStats(long folded, long dropped) {
+        int rooms = 0;
+        int queued = 0;
+        long held = 0;
+        for (Stripe stripe : stripes) {
+            rooms += stripe.getRoomCount();
+            queued += stripe.getQueueDepth();
+            held += stripe.getHeldBytes();
+        }
+        LOG.info((folded / STATS_INTERVAL_S) + " actions/s, "
+                 + rooms + " rooms, " + held / (1024 * 1024) + " MB held, "
+                 + queued + " queued, " + dropped + " dropped");
+    }
+}
@@ -0,0 +1,268 @@
+package net.ralphpina.drawwithme.aggregator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Authoritative stroke history for a single room.
+ * <p>
+ * Touch actions are folded into one open stroke per client, which is committed and given the
+ * room's next sequence number when that client lifts its finger, starts another stroke or goes
+ * away. A stroke that reaches {@link #MAX_POINTS_PER_STROKE} is committed as is and the client
+ * carries on in a new stroke starting from its last point, so a client that never lifts its finger
+ * cannot grow an open stroke without bound. Every stroke also remembers the {@code DrawAction}
+ * sequences of the first and last action folded into it, so a client can tell whether it drew the
+ * same actions live. Committed strokes keep their points in a trimmed
+ * {@code float[]} and are held in sequence order, so a sequence range maps straight onto a slice of
+ * the list.
+ * <p>
+ * The store keeps a rough count of the bytes its committed strokes take, so the {@link Stripe} can
+ * hold all of its rooms to a budget by evicting the oldest strokes with {@link #evictOldest()}.
+ * <p>
+ * Not thread safe, each room is only ever touched by the {@link Stripe} that owns it.
+ */
+final class RoomStore {
+
+    static final int MAX_POINTS_PER_STROKE = 4096;
+    // object headers, fields and list slot of a StrokeRecord and its points array
+    static final int RECORD_OVERHEAD_BYTES = 64;
+
+    private final String name;
+    private final int    maxStrokes;
+
+    private final ArrayList<StrokeRecord>    strokes     = new ArrayList<>();
+    private final Map<String, StrokeBuilder> openStrokes = new HashMap<>();
+
+    // sequence of strokes.get(0), sequences start at 1
+    private long firstSequence = 1;
+    private long byteSize;
+    private long lastActive;
+
+    RoomStore(String name, int maxStrokes) {
+        this.name = name;
+        this.maxStrokes = maxStrokes;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    // ===== FOLDING ===============================================================================
+
+    /**
+     * @param action sequence the client gave the action
+     */
+    void touchDown(String clientId, float x, float y, int action, long now) {
+        lastActive = now;
+        commit(clientId,
+               now);
+        open(clientId,
+             x,
+             y,
+             action);
+    }
+
+    void touchMove(String clientId, float x, float y, int action, long now) {
+        lastActive = now;
+        final StrokeBuilder builder = openStrokes.get(clientId);
+        if (builder == null) {
+            return;
+        }
+        builder.add(x,
+                    y,
+                    action);
+        if (builder.getPointCount() >= MAX_POINTS_PER_STROKE) {
+            commit(clientId,
+                   now);
+            open(clientId,
+                 x,
+                 y,
+                 action);
+        }
+    }
+
+    void touchUp(String clientId, int action, long now) {
+        lastActive = now;
+        final StrokeBuilder builder = openStrokes.get(clientId);
+        if (builder != null) {
+            builder.lastAction = action;
+        }
+        commit(clientId,
+               now);
+    }
+
+    /**
+     * Commits whatever the client had drawn so far, used when it disconnects mid stroke.
+     */
+    void closeClient(String clientId, long now) {
+        commit(clientId,
+               now);
+    }
+
+    private void open(String clientId, float x, float y, int action) {
+        final StrokeBuilder builder = new StrokeBuilder(action);
+        builder.add(x,
+                    y,
+                    action);
+        openStrokes.put(clientId,
+                        builder);
+    }
+
+    private void commit(String clientId, long now) {
+        final StrokeBuilder builder = openStrokes.remove(clientId);
+        if (builder == null) {
+            return;
+        }
+        final StrokeRecord record = new StrokeRecord(getLastSequence() + 1,
+                                                     clientId,
+                                                     now,
+                                                     builder.toArray(),
+                                                     builder.firstAction,
+                                                     builder.lastAction);
+        strokes.add(record);
+        byteSize += sizeOf(record);
+        if (strokes.size() > maxStrokes) {
+            evict(Math.max(1,
+                           maxStrokes / 10));
+        }
+    }
+
+    // ===== EVICTION ==============================================================================
+
+    /**
+     * Drops the oldest tenth of the committed strokes, at least one.
+     *
+     * @return bytes freed, 0 if there was nothing to drop
+     */
+    long evictOldest() {
+        final long before = byteSize;
+        evict(Math.min(strokes.size(),
+                       Math.max(1,
+                                strokes.size() / 10)));
+        return before - byteSize;
+    }
+
+    // evicts in chunks so trimming the front of the list stays amortized O(1)
+    private void evict(int count) {
+        final List<StrokeRecord> evicted = strokes.subList(0,
+                                                           count);
+        for (StrokeRecord record : evicted) {
+            byteSize -= sizeOf(record);
+        }
+        evicted.clear();
+        firstSequence += count;
+    }
+
+    private static long sizeOf(StrokeRecord record) {
+        return RECORD_OVERHEAD_BYTES + 4L * record.points.length + 2L * record.clientId.length();
+    }
+
+    // ===== QUERIES ===============================================================================
+
+    long getLastSequence() {
+        return firstSequence + strokes.size() - 1;
+    }
+
+    int getStrokeCount() {
+        return strokes.size();
+    }
+
+    /**
+     * @return rough heap taken by the committed strokes, open strokes are bounded by
+     * {@link #MAX_POINTS_PER_STROKE} and not counted
+     */
+    long getByteSize() {
+        return byteSize;
+    }
+
+    /**
+     * @return when the last touch action was folded, 0 if none ever was
+     */
+    long getLastActive() {
+        return lastActive;
+    }
+
+    boolean hasOpenStrokes() {
+        return !openStrokes.isEmpty();
+    }
+
+    /**
+     * @param from inclusive, 0 for the oldest stroke still held
+     * @param to   exclusive, 0 for up to the newest stroke
+     * @return the committed strokes in the range, oldest first. The list is a view that is only
+     * valid until the next stroke is committed.
+     */
+    List<StrokeRecord> range(long from, long to) {
+        final long start = Math.max(from,
+                                    firstSequence);
+        final long end = to == 0 ? getLastSequence() + 1 : Math.min(to,
+                                                                      getLastSequence() + 1);
+        if (start >= end) {
+            return Collections.emptyList();
+        }
+        return strokes.subList((int) (start - firstSequence),
+                               (int) (end - firstSequence));
+    }
+
+    // ===== STROKES ===============================================================================
+
+    static final class StrokeRecord {
+
+        final long    sequence;
+        final String  clientId;
+        final long    timestamp;
+        // x, y pairs
+        final float[] points;
+        final int     firstAction;
+        final int     lastAction;
+
+        StrokeRecord(long sequence,
+                     String clientId,
+                     long timestamp,
+                     float[] points,
+                     int firstAction,
+                     int lastAction) {
+            this.sequence = sequence;
+            this.clientId = clientId;
+            this.timestamp = timestamp;
+            this.points = points;
+            this.firstAction = firstAction;
+            this.lastAction = lastAction;
+        }
+    }
+
+    private static final class StrokeBuilder {
+
+        private final int     firstAction;
+        private       int     lastAction;
+        private       float[] points = new float[32];
+        private       int     size;
+
+        StrokeBuilder(int firstAction) {
+            this.firstAction = firstAction;
+        }
+
+        void add(float x, float y, int action) {
+            lastAction = action;
+            if (size + 2 > points.length) {
+                points = Arrays.copyOf(points,
+                                       points.length * 2);
+            }
+            points[size++] = x;
+            points[size++] = y;
+        }
+
+        int getPointCount() {
+            return size / 2;
+        }
+
+        float[] toArray() {
+            return Arrays.copyOf(points,
+                                 size);
+        }
+    }
+}
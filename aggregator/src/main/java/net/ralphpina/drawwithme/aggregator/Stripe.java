@@ -0,0 +1,335 @@
+package net.ralphpina.drawwithme.aggregator;
+
+import com.google.protobuf.nano.InvalidProtocolBufferNanoException;
+
+import net.ralphpina.drawwithme.ProtobufMessages.DrawAction;
+import net.ralphpina.drawwithme.ProtobufMessages.Stroke;
+import net.ralphpina.drawwithme.ProtobufMessages.StrokeCommit;
+import net.ralphpina.drawwithme.ProtobufMessages.StrokeRequest;
+import net.ralphpina.drawwithme.ProtobufMessages.StrokeResponse;
+import net.ralphpina.drawwithme.aggregator.RoomStore.StrokeRecord;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static net.ralphpina.drawwithme.ProtobufMessages.DrawAction.TOUCH_DOWN;
+import static net.ralphpina.drawwithme.ProtobufMessages.DrawAction.TOUCH_MOVE;
+import static net.ralphpina.drawwithme.ProtobufMessages.DrawAction.TOUCH_UP;
+
+/**
+ * One worker thread and the rooms it owns.
+ * <p>
+ * Rooms are assigned to stripes by name, so every action for a room is decoded and folded in the
+ * order it arrived without any locking, while different rooms are worked on in parallel. The work
+ * queue is bounded: once it is full new work is dropped and counted instead of growing the heap.
+ * Blocking would not push back on anything, drawing is QoS 0 so the broker does not wait for us,
+ * and it would stall the MQTT callback thread that every other room and the keepalive depend on.
+ * <p>
+ * Memory is bounded across rooms too. The strokes of every room on the stripe share a byte budget,
+ * and when it is exceeded the oldest strokes of the least recently used room are evicted first.
+ * Rooms nobody has drawn in for the idle time are dropped altogether.
+ * <p>
+ * Every stroke a room commits is announced through the {@link Responder} with the range of the
+ * client's actions it was folded from, in sequence order.
+ */
+final class Stripe {
+
+    private static final Logger LOG = Logger.getLogger(Stripe.class.getName());
+
+    // encoded size a response page aims to stay under, well below broker message size limits. A
+    // single stroke larger than this still goes out, alone in its page.
+    static final int PAGE_BYTES = 64 * 1024;
+    // field tags, lengths, sequence and timestamp of an encoded Stroke besides its points
+    private static final int STROKE_OVERHEAD_BYTES = 32;
+    // how often rooms are checked for being idle
+    private static final long SWEEP_INTERVAL_MS = 60 * 1000;
+
+    private final ThreadPoolExecutor     executor;
+    // in access order, so the least recently used room comes first
+    private final Map<String, RoomStore> rooms = new LinkedHashMap<>(16,
+                                                                     0.75f,
+                                                                     true);
+    private final int                    maxStrokesPerRoom;
+    private final long                   maxBytes;
+    private final long                   roomIdleMs;
+    private final Responder              responder;
+    private final AtomicLong             actionsFolded;
+
+    // only touched on the worker thread
+    private long byteSize;
+    private long lastSweep;
+
+    // read by the stats logger from another thread
+    private volatile int  roomCount;
+    private volatile long heldBytes;
+
+    /**
+     * @param maxBytes   budget for the strokes of all the rooms on this stripe
+     * @param roomIdleMs rooms with no touch action for this long are dropped
+     */
+    Stripe(final int index,
+           int queueCapacity,
+           int maxStrokesPerRoom,
+           long maxBytes,
+           long roomIdleMs,
+           Responder responder,
+           AtomicLong actionsFolded,
+           AtomicLong actionsDropped) {
+        this.maxStrokesPerRoom = maxStrokesPerRoom;
+        this.maxBytes = maxBytes;
+        this.roomIdleMs = roomIdleMs;
+        this.responder = responder;
+        this.actionsFolded = actionsFolded;
+
+        executor = new ThreadPoolExecutor(1,
+                                          1,
+                                          0,
+                                          TimeUnit.MILLISECONDS,
+                                          new ArrayBlockingQueue<Runnable>(queueCapacity),
+                                          new ThreadFactory() {
+                                              @Override
+                                              public Thread newThread(Runnable runnable) {
+                                                  return new Thread(runnable,
+                                                                    "stripe-" + index);
+                                              }
+                                          },
+                                          new DropAndCount(actionsDropped));
+    }
+
+    void onDrawAction(final String room, final byte[] payload, final long now) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DrawAction drawAction;
+                try {
+                    drawAction = DrawAction.parseFrom(payload);
+                } catch (InvalidProtocolBufferNanoException e) {
+                    LOG.log(Level.WARNING,
+                            "Dropping malformed draw action in " + room,
+                            e);
+                    return;
+                }
+
+                final RoomStore store = getRoom(room);
+                final long before = store.getByteSize();
+                final long lastSequence = store.getLastSequence();
+                switch (drawAction.drawingAction) {
+                    case TOUCH_DOWN:
+                        store.touchDown(drawAction.clientId,
+                                        drawAction.x,
+                                        drawAction.y,
+                                        drawAction.sequence,
+                                        now);
+                        break;
+                    case TOUCH_MOVE:
+                        store.touchMove(drawAction.clientId,
+                                        drawAction.x,
+                                        drawAction.y,
+                                        drawAction.sequence,
+                                        now);
+                        break;
+                    case TOUCH_UP:
+                        store.touchUp(drawAction.clientId,
+                                      drawAction.sequence,
+                                      now);
+                        break;
+                }
+                actionsFolded.incrementAndGet();
+                byteSize += store.getByteSize() - before;
+                announceCommits(store,
+                                lastSequence);
+                trim(now);
+            }
+        });
+    }
+
+    void onClientDisconnected(final String clientId, final long now) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (RoomStore store : rooms.values()) {
+                    final long before = store.getByteSize();
+                    final long lastSequence = store.getLastSequence();
+                    store.closeClient(clientId,
+                                      now);
+                    byteSize += store.getByteSize() - before;
+                    announceCommits(store,
+                                    lastSequence);
+                }
+                trim(now);
+            }
+        });
+    }
+
+    void onRequest(final StrokeRequest request) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // nothing has been drawn in a room we do not know, and asking must not create it
+                final RoomStore store = rooms.get(request.room);
+                final List<StrokeRecord> records =
+                        store == null ? Collections.<StrokeRecord>emptyList()
+                                      : store.range(request.fromSequence,
+                                                    request.toSequence);
+                int offset = 0;
+                int page = 0;
+                do {
+                    final int end = pageEnd(records,
+                                            offset);
+                    final StrokeResponse response = new StrokeResponse();
+                    response.room = request.room;
+                    response.requestId = request.requestId;
+                    response.page = page++;
+                    response.lastSequence = store == null ? 0 : store.getLastSequence();
+                    response.complete = end == records.size();
+                    response.strokes = new Stroke[end - offset];
+                    for (int i = offset; i < end; i++) {
+                        final StrokeRecord record = records.get(i);
+                        final Stroke stroke = new Stroke();
+                        stroke.sequence = record.sequence;
+                        stroke.clientId = record.clientId;
+                        stroke.timestamp = record.timestamp;
+                        stroke.points = record.points;
+                        stroke.firstAction = record.firstAction;
+                        stroke.lastAction = record.lastAction;
+                        response.strokes[i - offset] = stroke;
+                    }
+                    responder.respond(request.clientId,
+                                      response);
+                    offset = end;
+                } while (offset < records.size());
+            }
+        });
+    }
+
+    int getRoomCount() {
+        return roomCount;
+    }
+
+    long getHeldBytes() {
+        return heldBytes;
+    }
+
+    int getQueueDepth() {
+        return executor.getQueue()
+                       .size();
+    }
+
+    void shutdown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(10,
+                                  TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return end of the page starting at {@code offset}, holding at least one stroke
+     */
+    private static int pageEnd(List<StrokeRecord> records, int offset) {
+        int end = offset;
+        long bytes = 0;
+        while (end < records.size()) {
+            final StrokeRecord record = records.get(end);
+            bytes += STROKE_OVERHEAD_BYTES + 4L * record.points.length + record.clientId.length();
+            if (bytes > PAGE_BYTES && end > offset) {
+                break;
+            }
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Announces the strokes {@code store} committed past {@code lastSequence}.
+     */
+    private void announceCommits(RoomStore store, long lastSequence) {
+        // the range view is only valid until the next commit, nothing commits while announcing
+        for (StrokeRecord record : store.range(lastSequence + 1,
+                                               0)) {
+            final StrokeCommit commit = new StrokeCommit();
+            commit.room = store.getName();
+            commit.sequence = record.sequence;
+            commit.clientId = record.clientId;
+            commit.firstAction = record.firstAction;
+            commit.lastAction = record.lastAction;
+            responder.committed(commit);
+        }
+    }
+
+    /**
+     * Drops idle rooms, then evicts strokes from the least recently used rooms until the stripe is
+     * back within its budget.
+     */
+    private void trim(long now) {
+        if (now - lastSweep >= SWEEP_INTERVAL_MS) {
+            lastSweep = now;
+            final Iterator<RoomStore> idle = rooms.values()
+                                                  .iterator();
+            while (idle.hasNext()) {
+                final RoomStore store = idle.next();
+                if (now - store.getLastActive() >= roomIdleMs && !store.hasOpenStrokes()) {
+                    byteSize -= store.getByteSize();
+                    idle.remove();
+                }
+            }
+        }
+
+        final Iterator<RoomStore> iterator = rooms.values()
+                                                  .iterator();
+        while (byteSize > maxBytes && iterator.hasNext()) {
+            final RoomStore store = iterator.next();
+            while (byteSize > maxBytes && store.getStrokeCount() > 0) {
+                byteSize -= store.evictOldest();
+            }
+            if (store.getStrokeCount() == 0 && !store.hasOpenStrokes()) {
+                iterator.remove();
+            }
+        }
+        roomCount = rooms.size();
+        heldBytes = byteSize;
+    }
+
+    private RoomStore getRoom(String room) {
+        RoomStore store = rooms.get(room);
+        if (store == null) {
+            store = new RoomStore(room,
+                                  maxStrokesPerRoom);
+            rooms.put(room,
+                      store);
+            roomCount = rooms.size();
+        }
+        return store;
+    }
+
+    interface Responder {
+        void respond(String clientId, StrokeResponse response);
+
+        void committed(StrokeCommit commit);
+    }
+
+    private static final class DropAndCount implements RejectedExecutionHandler {
+
+        private final AtomicLong dropped;
+
+        DropAndCount(AtomicLong dropped) {
+            this.dropped = dropped;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            if (!executor.isShutdown()) {
+                dropped.incrementAndGet();
+            }
+        }
+    }
+}
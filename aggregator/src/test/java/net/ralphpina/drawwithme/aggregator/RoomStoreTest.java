@@ -0,0 +1,374 @@
+package net.ralphpina.drawwithme.aggregator;
+
+import net.ralphpina.drawwithme.aggregator.RoomStore.StrokeRecord;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RoomStoreTest {
+
+    @Test
+    public void touchUp_commitsTheStrokeWithTheNextSequence() throws Exception {
+        final RoomStore store = new RoomStore("room",
+                                              100);
+        drawStroke(store,
+                   "a",
+                   3);
+        drawStroke(store,
+                   "b",
+                   2);
+
+        assertEquals(2,
+                     store.getStrokeCount());
+        assertEquals(2,
+                     store.getLastSequence());
+        final List<StrokeRecord> records = store.range(0,
+                                                       0);
+        assertEquals(1,
+                     records.get(0).sequence);
+        assertEquals("a",
+                     records.get(0).clientId);
+        assertArrayEquals(new float[]{0, 0, 1, 1, 2, 2},
+                          records.get(0).points,
+                          0);
+        assertEquals(2,
+                     records.get(1).sequence);
+    }
+
+    @Test
+    public void touchDown_commitsTheClientsOpenStroke() throws Exception {
+        final RoomStore store = new RoomStore("room",
+                                              100);
+        store.touchDown("a",
+                        0,
+                        0,
+                        1,
+                        1);
+        store.touchMove("a",
+                        1,
+                        1,
+                        2,
+                        2);
+        // the TOUCH_UP was lost
+        store.touchDown("a",
+                        5,
+                        5,
+                        3,
+                        3);
+
+        assertEquals(1,
+                     store.getStrokeCount());
+        assertArrayEquals(new float[]{0, 0, 1, 1},
+                          store.range(0,
+                                      0)
+                               .get(0).points,
+                          0);
+
+        store.touchUp("a",
+                      4,
+                      4);
+        assertEquals(2,
+                     store.getStrokeCount());
+        assertArrayEquals(new float[]{5, 5},
+                          store.range(2,
+                                      0)
+                               .get(0).points,
+                          0);
+    }
+
+    @Test
+    public void closeClient_commitsOnlyThatClientsOpenStroke() throws Exception {
+        final RoomStore store = new RoomStore("room",
+                                              100);
+        store.touchDown("a",
+                        0,
+                        0,
+                        1,
+                        1);
+        store.touchDown("b",
+                        9,
+                        9,
+                        1,
+                        1);
+
+        store.closeClient("a",
+                          2);
+        assertEquals(1,
+                     store.getStrokeCount());
+        assertEquals("a",
+                     store.range(0,
+                                 0)
+                          .get(0).clientId);
+
+        // nothing left open for a, closing again is a no-op
+        store.closeClient("a",
+                          3);
+        assertEquals(1,
+                     store.getStrokeCount());
+
+        store.touchUp("b",
+                      4,
+                      4);
+        assertEquals(2,
+                     store.getStrokeCount());
+    }
+
+    @Test
+    public void commit_recordsTheRangeOfActionsFoldedIn() throws Exception {
+        final RoomStore store = new RoomStore("room",
+                                              100);
+        store.touchDown("a",
+                        0,
+                        0,
+                        7,
+                        1);
+        store.touchMove("a",
+                        1,
+                        1,
+                        8,
+                        2);
+        store.touchUp("a",
+                      9,
+                      3);
+        // the TOUCH_UP was lost, the stroke ends at the last action that made it
+        store.touchDown("a",
+                        0,
+                        0,
+                        10,
+                        4);
+        store.touchMove("a",
+                        1,
+                        1,
+                        11,
+                        5);
+        store.touchDown("a",
+                        0,
+                        0,
+                        13,
+                        6);
+
+        final List<StrokeRecord> records = store.range(0,
+                                                       0);
+        assertEquals(2,
+                     records.size());
+        assertEquals(7,
+                     records.get(0).firstAction);
+        assertEquals(9,
+                     records.get(0).lastAction);
+        assertEquals(10,
+                     records.get(1).firstAction);
+        assertEquals(11,
+                     records.get(1).lastAction);
+    }
+
+    @Test
+    public void touchMove_withoutTouchDownIsIgnored() throws Exception {
+        final RoomStore store = new RoomStore("room",
+                                              100);
+        store.touchMove("a",
+                        1,
+                        1,
+                        1,
+                        1);
+        store.touchUp("a",
+                      2,
+                      2);
+        assertEquals(0,
+                     store.getStrokeCount());
+        assertEquals(0,
+                     store.getLastSequence());
+    }
+
+    @Test
+    public void touchMove_commitsAStrokeThatReachesThePointCap() throws Exception {
+        final RoomStore store = new RoomStore("room",
+                                              100);
+        store.touchDown("a",
+                        0,
+                        0,
+                        1,
+                        1);
+        for (int i = 1; i < RoomStore.MAX_POINTS_PER_STROKE + 10; i++) {
+            store.touchMove("a",
+                            i,
+                            i,
+                            1 + i,
+                            2);
+        }
+
+        assertEquals(1,
+                     store.getStrokeCount());
+        final float[] capped = store.range(0,
+                                           0)
+                                    .get(0).points;
+        assertEquals(RoomStore.MAX_POINTS_PER_STROKE * 2,
+                     capped.length);
+
+        store.touchUp("a",
+                      RoomStore.MAX_POINTS_PER_STROKE + 10,
+                      3);
+        // the next stroke carries on from where the capped one ended, from the same action
+        final StrokeRecord first = store.range(1,
+                                               2)
+                                        .get(0);
+        final StrokeRecord second = store.range(2,
+                                                0)
+                                         .get(0);
+        assertEquals(RoomStore.MAX_POINTS_PER_STROKE,
+                     first.lastAction);
+        assertEquals(first.lastAction,
+                     second.firstAction);
+        final float[] rest = second.points;
+        assertEquals(capped[capped.length - 2],
+                     rest[0],
+                     0);
+        assertEquals(11 * 2,
+                     rest.length);
+    }
+
+    @Test
+    public void range_afterEviction() throws Exception {
+        // evicts 2 strokes at a time whenever it goes over 20
+        final RoomStore store = new RoomStore("room",
+                                              20);
+        for (int i = 0; i < 25; i++) {
+            drawStroke(store,
+                       "a",
+                       1);
+        }
+
+        assertEquals(25,
+                     store.getLastSequence());
+        assertEquals(19,
+                     store.getStrokeCount());
+
+        // from before the oldest stroke held, to past the newest
+        final List<StrokeRecord> all = store.range(1,
+                                                   1000);
+        assertEquals(19,
+                     all.size());
+        assertEquals(7,
+                     all.get(0).sequence);
+        assertEquals(25,
+                     all.get(all.size() - 1).sequence);
+
+        final List<StrokeRecord> open = store.range(0,
+                                                    0);
+        assertEquals(19,
+                     open.size());
+
+        final List<StrokeRecord> middle = store.range(10,
+                                                      12);
+        assertEquals(2,
+                     middle.size());
+        assertEquals(10,
+                     middle.get(0).sequence);
+        assertEquals(11,
+                     middle.get(1).sequence);
+
+        assertTrue(store.range(26,
+                               0)
+                        .isEmpty());
+        assertTrue(store.range(1,
+                               7)
+                        .isEmpty());
+    }
+
+    @Test
+    public void evictOldest_dropsATenthAndFreesItsBytes() throws Exception {
+        final RoomStore store = new RoomStore("room",
+                                              100);
+        for (int i = 0; i < 20; i++) {
+            drawStroke(store,
+                       "a",
+                       10);
+        }
+        final long perStroke = RoomStore.RECORD_OVERHEAD_BYTES + 4 * 20 + 2;
+        assertEquals(20 * perStroke,
+                     store.getByteSize());
+
+        assertEquals(2 * perStroke,
+                     store.evictOldest());
+        assertEquals(18,
+                     store.getStrokeCount());
+        assertEquals(18 * perStroke,
+                     store.getByteSize());
+        assertEquals(3,
+                     store.range(0,
+                                 0)
+                          .get(0).sequence);
+
+        while (store.getStrokeCount() > 0) {
+            store.evictOldest();
+        }
+        assertEquals(0,
+                     store.getByteSize());
+        assertEquals(0,
+                     store.evictOldest());
+        assertEquals(20,
+                     store.getLastSequence());
+    }
+
+    @Test
+    public void foldsInterleavedStrokesOfManyClients() throws Exception {
+        final RoomStore store = new RoomStore("room",
+                                              10000);
+        final int clients = 50;
+        final int pointsPerStroke = 100;
+        final int points = 2000000;
+
+        for (int i = 0; i < points; i++) {
+            final String client = "client-" + (i % clients);
+            final int index = i / clients % pointsPerStroke;
+            if (index == 0) {
+                store.touchDown(client,
+                                i,
+                                i,
+                                i,
+                                i);
+            } else if (index == pointsPerStroke - 1) {
+                store.touchUp(client,
+                              i,
+                              i);
+            } else {
+                store.touchMove(client,
+                                i,
+                                i,
+                                i,
+                                i);
+            }
+        }
+
+        assertEquals(points / pointsPerStroke,
+                     store.getLastSequence());
+        // the up is not a point
+        for (StrokeRecord record : store.range(0,
+                                               0)) {
+            assertEquals((pointsPerStroke - 1) * 2,
+                         record.points.length);
+        }
+    }
+
+    private static void drawStroke(RoomStore store, String clientId, int points) {
+        store.touchDown(clientId,
+                        0,
+                        0,
+                        0,
+                        0);
+        for (int i = 1; i < points; i++) {
+            store.touchMove(clientId,
+                            i,
+                            i,
+                            i,
+                            0);
+        }
+        store.touchUp(clientId,
+                      points,
+                      0);
+    }
+}
@@ -0,0 +1,409 @@
+package net.ralphpina.drawwithme.aggregator;
+
+import net.ralphpina.drawwithme.ProtobufMessages.DrawAction;
+import net.ralphpina.drawwithme.ProtobufMessages.Stroke;
+import net.ralphpina.drawwithme.ProtobufMessages.StrokeCommit;
+import net.ralphpina.drawwithme.ProtobufMessages.StrokeRequest;
+import net.ralphpina.drawwithme.ProtobufMessages.StrokeResponse;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.ralphpina.drawwithme.ProtobufMessages.DrawAction.TOUCH_DOWN;
+import static net.ralphpina.drawwithme.ProtobufMessages.DrawAction.TOUCH_MOVE;
+import static net.ralphpina.drawwithme.ProtobufMessages.DrawAction.TOUCH_UP;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StripeTest {
+
+    private final AtomicLong           folded    = new AtomicLong();
+    private final AtomicLong           dropped   = new AtomicLong();
+    private final List<StrokeResponse> responses = new CopyOnWriteArrayList<>();
+    private final List<StrokeCommit>   commits   = new CopyOnWriteArrayList<>();
+    private       Stripe               stripe;
+
+    @After
+    public void tearDown() throws Exception {
+        stripe.shutdown();
+    }
+
+    @Test
+    public void onRequest_forAnUnknownRoomAnswersEmptyWithoutCreatingIt() throws Exception {
+        stripe = newStripe(100,
+                           new RecordingResponder());
+        stripe.onRequest(request("nowhere",
+                                 1));
+        stripe.shutdown();
+
+        assertEquals(1,
+                     responses.size());
+        assertEquals("nowhere",
+                     responses.get(0).room);
+        assertEquals(0,
+                     responses.get(0).strokes.length);
+        assertTrue(responses.get(0).complete);
+        assertEquals(0,
+                     stripe.getRoomCount());
+    }
+
+    @Test
+    public void onRequest_answersTheStrokesAfterTheRequestedSequence() throws Exception {
+        stripe = newStripe(10000,
+                           new RecordingResponder());
+        for (int i = 0; i < 600; i++) {
+            stripe.onDrawAction("room",
+                                action("a",
+                                       TOUCH_DOWN),
+                                i);
+            stripe.onDrawAction("room",
+                                action("a",
+                                       TOUCH_UP),
+                                i);
+        }
+        stripe.onRequest(request("room",
+                                 51));
+        stripe.shutdown();
+
+        int strokes = 0;
+        for (int i = 0; i < responses.size(); i++) {
+            assertEquals(i == responses.size() - 1,
+                         responses.get(i).complete);
+            assertEquals(600,
+                         responses.get(i).lastSequence);
+            strokes += responses.get(i).strokes.length;
+        }
+        assertEquals(550,
+                     strokes);
+        assertEquals(51,
+                     responses.get(0).strokes[0].sequence);
+    }
+
+    @Test
+    public void onRequest_numbersThePagesOfTheAnswerAndEchoesTheRequestId() throws Exception {
+        stripe = newStripe(100000,
+                           new RecordingResponder());
+        for (int i = 0; i < 20; i++) {
+            drawStroke("room",
+                       1000,
+                       i);
+        }
+        final StrokeRequest request = request("room",
+                                              1);
+        request.requestId = 42;
+        stripe.onRequest(request);
+        stripe.shutdown();
+
+        assertTrue(responses.size() > 1);
+        for (int i = 0; i < responses.size(); i++) {
+            assertEquals(42,
+                         responses.get(i).requestId);
+            assertEquals(i,
+                         responses.get(i).page);
+        }
+    }
+
+    @Test
+    public void committedStrokes_areAnnouncedWithTheActionsTheyWereFoldedFrom() throws Exception {
+        stripe = newStripe(100,
+                           new RecordingResponder());
+        stripe.onDrawAction("room",
+                            action("a",
+                                   TOUCH_DOWN,
+                                   5),
+                            0);
+        stripe.onDrawAction("room",
+                            action("a",
+                                   TOUCH_MOVE,
+                                   6),
+                            0);
+        stripe.onDrawAction("room",
+                            action("a",
+                                   TOUCH_UP,
+                                   7),
+                            0);
+        stripe.onDrawAction("room",
+                            action("b",
+                                   TOUCH_DOWN,
+                                   1),
+                            0);
+        // b goes away mid stroke
+        stripe.onClientDisconnected("b",
+                                    0);
+        stripe.shutdown();
+
+        assertEquals(2,
+                     commits.size());
+        assertEquals("room",
+                     commits.get(0).room);
+        assertEquals(1,
+                     commits.get(0).sequence);
+        assertEquals("a",
+                     commits.get(0).clientId);
+        assertEquals(5,
+                     commits.get(0).firstAction);
+        assertEquals(7,
+                     commits.get(0).lastAction);
+        assertEquals(2,
+                     commits.get(1).sequence);
+        assertEquals("b",
+                     commits.get(1).clientId);
+        assertEquals(1,
+                     commits.get(1).firstAction);
+        assertEquals(1,
+                     commits.get(1).lastAction);
+    }
+
+    @Test
+    public void onRequest_pagesByEncodedSize() throws Exception {
+        stripe = newStripe(100000,
+                           new RecordingResponder());
+        // about 8 KB each
+        for (int i = 0; i < 20; i++) {
+            drawStroke("room",
+                       1000,
+                       i);
+        }
+        stripe.onRequest(request("room",
+                                 1));
+        stripe.shutdown();
+
+        long sequence = 1;
+        for (int i = 0; i < responses.size(); i++) {
+            final StrokeResponse response = responses.get(i);
+            assertEquals(i == responses.size() - 1,
+                         response.complete);
+            long bytes = 0;
+            for (Stroke stroke : response.strokes) {
+                assertEquals(sequence++,
+                             stroke.sequence);
+                bytes += 4 * stroke.points.length;
+            }
+            assertTrue(bytes + " bytes",
+                       bytes <= Stripe.PAGE_BYTES);
+        }
+        // 8 strokes fit in a page
+        assertEquals(3,
+                     responses.size());
+        assertEquals(21,
+                     sequence);
+    }
+
+    @Test
+    public void overBudget_evictsFromTheLeastRecentlyUsedRoomFirst() throws Exception {
+        final long budget = 100 * 1024;
+        stripe = new Stripe(0,
+                            100000,
+                            100000,
+                            budget,
+                            Long.MAX_VALUE,
+                            new RecordingResponder(),
+                            folded,
+                            dropped);
+        // about 60 KB a room
+        for (int i = 0; i < 30; i++) {
+            drawStroke("old",
+                       250,
+                       i);
+        }
+        for (int i = 0; i < 30; i++) {
+            drawStroke("new",
+                       250,
+                       i);
+        }
+        stripe.onRequest(request("old",
+                                 0));
+        stripe.onRequest(request("new",
+                                 0));
+        stripe.shutdown();
+
+        assertTrue(stripe.getHeldBytes() + " bytes held",
+                   stripe.getHeldBytes() <= budget);
+        assertEquals(2,
+                     responses.size());
+        // the old room lost its oldest strokes, the new one kept all of them
+        final Stroke[] old = responses.get(0).strokes;
+        assertTrue(old.length + " strokes left",
+                   old.length > 0 && old.length < 30);
+        assertEquals(30,
+                     old[old.length - 1].sequence);
+        final Stroke[] kept = responses.get(1).strokes;
+        assertEquals(30,
+                     kept.length);
+        assertEquals(1,
+                     kept[0].sequence);
+    }
+
+    @Test
+    public void idleRooms_areDropped() throws Exception {
+        stripe = new Stripe(0,
+                            100000,
+                            100000,
+                            Long.MAX_VALUE,
+                            60 * 60 * 1000,
+                            new RecordingResponder(),
+                            folded,
+                            dropped);
+        drawStroke("idle",
+                   10,
+                   0);
+        drawStroke("busy",
+                   10,
+                   30 * 60 * 1000);
+        // past the idle time of the first room only
+        drawStroke("busy",
+                   10,
+                   70 * 60 * 1000);
+        stripe.onRequest(request("idle",
+                                 1));
+        stripe.shutdown();
+
+        assertEquals(1,
+                     stripe.getRoomCount());
+        assertEquals(0,
+                     responses.get(0).strokes.length);
+        assertEquals(0,
+                     responses.get(0).lastSequence);
+    }
+
+    @Test
+    public void fullQueue_dropsInsteadOfBlockingTheCaller() throws Exception {
+        final CountDownLatch responding = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        stripe = newStripe(2,
+                           new Stripe.Responder() {
+                               @Override
+                               public void respond(String clientId, StrokeResponse response) {
+                                   responding.countDown();
+                                   try {
+                                       release.await();
+                                   } catch (InterruptedException ignore) {
+                                   }
+                               }
+
+                               @Override
+                               public void committed(StrokeCommit commit) {
+                               }
+                           });
+
+        // park the worker so nothing is taken off the queue
+        stripe.onRequest(request("room",
+                                 1));
+        assertTrue(responding.await(5,
+                                    TimeUnit.SECONDS));
+
+        for (int i = 0; i < 5; i++) {
+            stripe.onDrawAction("room",
+                                action("a",
+                                       TOUCH_DOWN),
+                                i);
+        }
+        assertEquals(3,
+                     dropped.get());
+
+        release.countDown();
+        stripe.shutdown();
+        assertEquals(2,
+                     folded.get());
+    }
+
+    @Test
+    public void foldsEveryActionOfAQueueFull() throws Exception {
+        final int actions = 200000;
+        stripe = newStripe(actions,
+                           new RecordingResponder());
+
+        final byte[] down = action("a",
+                                   TOUCH_DOWN);
+        final byte[] move = action("a",
+                                   TOUCH_MOVE);
+        final byte[] up = action("a",
+                                 TOUCH_UP);
+        for (int i = 0; i < actions; i++) {
+            final int index = i % 100;
+            stripe.onDrawAction("room",
+                                index == 0 ? down : index == 99 ? up : move,
+                                i);
+        }
+        stripe.onRequest(request("room",
+                                 actions));
+        stripe.shutdown();
+
+        assertEquals(actions,
+                     folded.get());
+        assertEquals(0,
+                     dropped.get());
+        assertEquals(actions / 100,
+                     responses.get(0).lastSequence);
+    }
+
+    private Stripe newStripe(int queueCapacity, Stripe.Responder responder) {
+        return new Stripe(0,
+                          queueCapacity,
+                          100000,
+                          Long.MAX_VALUE,
+                          Long.MAX_VALUE,
+                          responder,
+                          folded,
+                          dropped);
+    }
+
+    private void drawStroke(String room, int points, long now) {
+        stripe.onDrawAction(room,
+                            action("a",
+                                   TOUCH_DOWN),
+                            now);
+        for (int i = 1; i < points; i++) {
+            stripe.onDrawAction(room,
+                                action("a",
+                                       TOUCH_MOVE),
+                                now);
+        }
+        stripe.onDrawAction(room,
+                            action("a",
+                                   TOUCH_UP),
+                            now);
+    }
+
+    private static byte[] action(String clientId, int drawingAction) {
+        return action(clientId,
+                      drawingAction,
+                      0);
+    }
+
+    private static byte[] action(String clientId, int drawingAction, int sequence) {
+        final DrawAction action = new DrawAction();
+        action.clientId = clientId;
+        action.drawingAction = drawingAction;
+        action.x = 1;
+        action.y = 2;
+        action.sequence = sequence;
+        return DrawAction.toByteArray(action);
+    }
+
+    private static StrokeRequest request(String room, long fromSequence) {
+        final StrokeRequest request = new StrokeRequest();
+        request.clientId = "asker";
+        request.room = room;
+        request.fromSequence = fromSequence;
+        return request;
+    }
+
+    private class RecordingResponder implements Stripe.Responder {
+        @Override
+        public void respond(String clientId, StrokeResponse response) {
+            responses.add(response);
+        }
+
+        @Override
+        public void committed(StrokeCommit commit) {
+            commits.add(commit);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package net.ralphpina.drawwithme;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class HistoryPlaybackTest extends AndroidTestCase {
+
+    private static final int  WIDTH   = 100;
+    private static final int  HEIGHT  = 100;
+    private static final long START   = 1000000;
+    private static final int  STROKES = 1000;
+
+    private File          root;
+    private StrokeHistory history;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        root = new File(getContext().getCacheDir(),
+                        "playback-test");
+        StrokeHistoryTest.deleteRecursively(root);
+        history = StrokeHistory.open(new File(root,
+                                              StrokeHistory.newSessionName()));
+        final Bitmap bitmap = Bitmap.createBitmap(WIDTH,
+                                                  HEIGHT,
+                                                  Bitmap.Config.ARGB_8888);
+        for (int i = 0; i < STROKES; i++) {
+            // 10s of drawing
+            history.append(new HistoryStroke(START + i * 10,
+                                             Color.BLACK,
+                                             4,
+                                             new float[]{i % WIDTH, 0, i % WIDTH, HEIGHT}),
+                           bitmap);
+        }
+        history.flush();
+        bitmap.recycle();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        history.close();
+        history.flush();
+        StrokeHistoryTest.deleteRecursively(root);
+        super.tearDown();
+    }
+
+    public void testReplay_handsEveryStrokeOverInOrderOnTheMainThread() throws Exception {
+        final Recorder recorder = new Recorder();
+        // 10s of drawing in about 100ms
+        new HistoryPlayback(history,
+                            Long.MIN_VALUE,
+                            Long.MAX_VALUE,
+                            WIDTH,
+                            HEIGHT,
+                            100,
+                            recorder).start();
+
+        assertTrue(recorder.finished.await(10,
+                                           TimeUnit.SECONDS));
+        assertTrue(recorder.seeked);
+        assertFalse(recorder.offMainThread);
+        assertEquals(STROKES,
+                     recorder.strokes.size());
+        for (int i = 0; i < STROKES; i++) {
+            assertEquals(START + i * 10,
+                         recorder.strokes.get(i)
+                                         .getTimestamp());
+        }
+        // handed over in batches, not one post per stroke
+        assertTrue(recorder.batches < STROKES);
+    }
+
+    public void testReplay_fromTheMiddleStartsAfterThatTime() throws Exception {
+        final Recorder recorder = new Recorder();
+        new HistoryPlayback(history,
+                            START + 5000,
+                            Long.MAX_VALUE,
+                            WIDTH,
+                            HEIGHT,
+                            1000,
+                            recorder).start();
+
+        assertTrue(recorder.finished.await(10,
+                                           TimeUnit.SECONDS));
+        assertEquals(STROKES / 2 - 1,
+                     recorder.strokes.size());
+        assertEquals(START + 5010,
+                     recorder.strokes.get(0)
+                                     .getTimestamp());
+    }
+
+    public void testReplay_leavesOutStrokesAfterUntil() throws Exception {
+        final Recorder recorder = new Recorder();
+        new HistoryPlayback(history,
+                            Long.MIN_VALUE,
+                            START + 990,
+                            WIDTH,
+                            HEIGHT,
+                            1000,
+                            recorder).start();
+
+        assertTrue(recorder.finished.await(10,
+                                           TimeUnit.SECONDS));
+        assertEquals(100,
+                     recorder.strokes.size());
+        assertEquals(START + 990,
+                     recorder.strokes.get(99)
+                                     .getTimestamp());
+    }
+
+    public void testPaused_handsNothingOverUntilResumed() throws Exception {
+        final Recorder recorder = new Recorder();
+        final HistoryPlayback playback = new HistoryPlayback(history,
+                                                             START + 5000,
+                                                             Long.MAX_VALUE,
+                                                             WIDTH,
+                                                             HEIGHT,
+                                                             0,
+                                                             recorder);
+        playback.start();
+        Thread.sleep(500);
+        assertTrue(recorder.seeked);
+        assertTrue(recorder.strokes.isEmpty());
+
+        playback.setSpeed(1000);
+        assertTrue(recorder.finished.await(10,
+                                           TimeUnit.SECONDS));
+        assertEquals(STROKES / 2 - 1,
+                     recorder.strokes.size());
+    }
+
+    public void testSetSpeed_rejectsNegativeSpeedsAndNaN() throws Exception {
+        for (float speed : new float[]{-1, Float.NaN}) {
+            try {
+                new HistoryPlayback(history,
+                                    START,
+                                    Long.MAX_VALUE,
+                                    WIDTH,
+                                    HEIGHT,
+                                    speed,
+                                    new Recorder());
+                fail("accepted " + speed);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    private static class Recorder implements HistoryPlayback.Listener {
+
+        final    CountDownLatch      finished = new CountDownLatch(1);
+        final    List<HistoryStroke> strokes  = new ArrayList<>();
+        volatile boolean             seeked;
+        volatile boolean             offMainThread;
+        volatile int                 batches;
+
+        @Override
+        public void onSeek(Bitmap bitmap) {
+            checkThread();
+            seeked = true;
+            bitmap.recycle();
+        }
+
+        @Override
+        public void onStrokes(List<HistoryStroke> strokes) {
+            checkThread();
+            synchronized (this.strokes) {
+                this.strokes.addAll(strokes);
+            }
+            batches++;
+        }
+
+        @Override
+        public void onFinished() {
+            checkThread();
+            finished.countDown();
+        }
+
+        private void checkThread() {
+            if (Looper.myLooper() != Looper.getMainLooper()) {
+                offMainThread = true;
+            }
+        }
+    }
+}
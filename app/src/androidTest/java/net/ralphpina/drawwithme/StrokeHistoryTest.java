@@ -0,0 +1,361 @@
+package net.ralphpina.drawwithme;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.test.AndroidTestCase;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class StrokeHistoryTest extends AndroidTestCase {
+
+    private static final int  WIDTH   = 300;
+    private static final int  HEIGHT  = 200;
+    private static final long START   = 1000000;
+    // more than one keyframe's worth
+    private static final int  STROKES = 450;
+
+    private File                root;
+    private StrokeHistory       history;
+    private List<HistoryStroke> strokes;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        root = new File(getContext().getCacheDir(),
+                        "history-test");
+        deleteRecursively(root);
+        history = StrokeHistory.open(new File(root,
+                                              StrokeHistory.newSessionName()));
+
+        // record strokes the way DrawingView does, drawn first and then appended with the canvas
+        strokes = new ArrayList<>();
+        final Bitmap bitmap = Bitmap.createBitmap(WIDTH,
+                                                  HEIGHT,
+                                                  Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(bitmap);
+        final Paint paint = HistoryStroke.newPaint();
+        for (int i = 0; i < STROKES; i++) {
+            final HistoryStroke stroke = newStroke(i);
+            stroke.draw(canvas,
+                        paint);
+            history.append(stroke,
+                           bitmap);
+            strokes.add(stroke);
+        }
+        history.flush();
+        bitmap.recycle();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        history.close();
+        history.flush();
+        deleteRecursively(root);
+        super.tearDown();
+    }
+
+    public void testSeek_matchesDrawingEveryStrokeUpToThatTime() throws Exception {
+        // before the first keyframe's tail, right on a keyframe, and past the last one
+        for (int index : new int[]{0, 10, 200, 201, 330, STROKES - 1}) {
+            final long time = newStroke(index).getTimestamp();
+            final StrokeHistory.Cursor cursor = history.seek(time,
+                                                             WIDTH,
+                                                             HEIGHT);
+            final Bitmap expected = drawUpTo(index);
+            try {
+                assertSimilar("seek to stroke " + index,
+                              expected,
+                              cursor.getBitmap());
+                if (index + 1 < STROKES) {
+                    assertEquals(newStroke(index + 1).getTimestamp(),
+                                 cursor.peekTimestamp());
+                } else {
+                    assertEquals(Long.MAX_VALUE,
+                                 cursor.peekTimestamp());
+                }
+            } finally {
+                cursor.close();
+                cursor.getBitmap()
+                      .recycle();
+                expected.recycle();
+            }
+        }
+    }
+
+    public void testOpenFromStart_readsEveryStrokeInOrder() throws Exception {
+        final StrokeHistory.Cursor cursor = history.openFromStart();
+        try {
+            assertNull(cursor.getBitmap());
+            for (HistoryStroke expected : strokes) {
+                final HistoryStroke actual = cursor.next();
+                assertEquals(expected.getTimestamp(),
+                             actual.getTimestamp());
+                assertEquals(expected.getColor(),
+                             actual.getColor());
+                assertEquals(expected.getPoints().length,
+                             actual.getPoints().length);
+            }
+            assertNull(cursor.next());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testReopen_appendsAfterWhatIsThere() throws Exception {
+        history.close();
+        history.flush();
+        history = StrokeHistory.open(new File(root,
+                                              root.list()[0]));
+        final Bitmap bitmap = Bitmap.createBitmap(WIDTH,
+                                                  HEIGHT,
+                                                  Bitmap.Config.ARGB_8888);
+        history.append(newStroke(STROKES),
+                       bitmap);
+        history.flush();
+        bitmap.recycle();
+
+        assertEquals(STROKES + 1,
+                     countStrokes());
+    }
+
+    public void testOpen_sharesTheInstanceUntilEveryOpenIsClosed() throws Exception {
+        final StrokeHistory again = StrokeHistory.open(new File(root,
+                                                                root.list()[0]));
+        assertSame(history,
+                   again);
+        again.close();
+
+        // still open for the first caller
+        history.append(newStroke(STROKES),
+                       null);
+        history.flush();
+        assertEquals(STROKES + 1,
+                     countStrokes());
+    }
+
+    public void testReopen_waitsForTheClosedInstanceToFinishWriting() throws Exception {
+        final Bitmap bitmap = drawUpTo(STROKES - 1);
+        final Canvas canvas = new Canvas(bitmap);
+        final Paint paint = HistoryStroke.newPaint();
+        // enough for another keyframe, left queued when the history is closed
+        for (int i = STROKES; i < STROKES + 250; i++) {
+            newStroke(i).draw(canvas,
+                              paint);
+            history.append(newStroke(i),
+                           bitmap);
+        }
+        history.close();
+        history = StrokeHistory.open(new File(root,
+                                              root.list()[0]));
+        newStroke(STROKES + 250).draw(canvas,
+                                      paint);
+        history.append(newStroke(STROKES + 250),
+                       bitmap);
+        history.flush();
+        bitmap.recycle();
+
+        assertEquals(STROKES + 251,
+                     countStrokes());
+        final StrokeHistory.Cursor cursor = history.seek(newStroke(STROKES + 250).getTimestamp(),
+                                                         WIDTH,
+                                                         HEIGHT);
+        final Bitmap expected = drawUpTo(STROKES + 250);
+        try {
+            assertSimilar("after reopening",
+                          expected,
+                          cursor.getBitmap());
+            assertNull(cursor.next());
+        } finally {
+            expected.recycle();
+            cursor.getBitmap()
+                  .recycle();
+            cursor.close();
+        }
+    }
+
+    public void testReopen_dropsAStrokeCutShortByACrash() throws Exception {
+        history.close();
+        history.flush();
+        final File session = new File(root,
+                                      root.list()[0]);
+        final DataOutputStream log = new DataOutputStream(
+                new FileOutputStream(new File(session,
+                                              "strokes.log"),
+                                     true));
+        // the header and half of the points of a stroke
+        log.writeLong(START + STROKES * 10);
+        log.writeInt(Color.RED);
+        log.writeFloat(4);
+        log.writeInt(8);
+        log.writeFloat(1);
+        log.writeFloat(2);
+        log.close();
+
+        history = StrokeHistory.open(session);
+        history.append(newStroke(STROKES),
+                       null);
+        history.flush();
+
+        assertEquals(STROKES + 1,
+                     countStrokes());
+    }
+
+    public void testCursor_rejectsAnImpossiblePointCount() throws Exception {
+        history.close();
+        history.flush();
+        final DataOutputStream log = new DataOutputStream(
+                new FileOutputStream(new File(new File(root,
+                                                       root.list()[0]),
+                                              "strokes.log"),
+                                     true));
+        log.writeLong(START + STROKES * 10);
+        log.writeInt(Color.RED);
+        log.writeFloat(4);
+        log.writeInt(-8);
+        log.close();
+
+        final StrokeHistory.Cursor cursor = history.openFromStart();
+        try {
+            for (int i = 0; i < STROKES; i++) {
+                assertNotNull(cursor.next());
+            }
+            cursor.next();
+            fail();
+        } catch (IOException expected) {
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testExportFrames_writesAFramePerIntervalAndSkipsIdleTime() throws Exception {
+        final File output = new File(root,
+                                     "export");
+        // strokes are 10ms apart, so this is one frame per 10 strokes
+        final int frames = history.exportFrames(output,
+                                                100,
+                                                WIDTH,
+                                                HEIGHT);
+        // plus the last, partial, interval
+        assertEquals(STROKES / 10 + 1,
+                     frames);
+        assertEquals(frames,
+                     output.list().length);
+    }
+
+    public void testDeleteOldSessions_keepsTheNewestAndTheOneInUse() throws Exception {
+        final File sessions = new File(getContext().getCacheDir(),
+                                       "sessions-test");
+        deleteRecursively(sessions);
+        final List<File> created = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            final File session = new File(sessions,
+                                          String.valueOf(START + i));
+            assertTrue(session.mkdirs());
+            assertTrue(new File(session,
+                                "strokes.log").createNewFile());
+            created.add(session);
+        }
+
+        StrokeHistory.deleteOldSessions(sessions,
+                                        3,
+                                        created.get(1));
+
+        assertFalse(created.get(0)
+                           .exists());
+        assertTrue(created.get(1)
+                          .exists());
+        for (int i = 2; i < 5; i++) {
+            assertFalse(created.get(i)
+                               .exists());
+        }
+        for (int i = 5; i < 8; i++) {
+            assertTrue(created.get(i)
+                              .exists());
+        }
+        deleteRecursively(sessions);
+    }
+
+    private int countStrokes() throws IOException {
+        final StrokeHistory.Cursor cursor = history.openFromStart();
+        int count = 0;
+        try {
+            while (cursor.next() != null) {
+                count++;
+            }
+        } finally {
+            cursor.close();
+        }
+        return count;
+    }
+
+    private static HistoryStroke newStroke(int index) {
+        final float[] points = new float[8];
+        for (int i = 0; i < points.length; i += 2) {
+            points[i] = (index * 37 + i * 11) % WIDTH;
+            points[i + 1] = (index * 13 + i * 29) % HEIGHT;
+        }
+        return new HistoryStroke(START + index * 10,
+                                 index % 2 == 0 ? Color.RED : Color.BLUE,
+                                 4 + index % 8,
+                                 points);
+    }
+
+    private static Bitmap drawUpTo(int index) {
+        final Bitmap bitmap = Bitmap.createBitmap(WIDTH,
+                                                  HEIGHT,
+                                                  Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(bitmap);
+        final Paint paint = HistoryStroke.newPaint();
+        for (int i = 0; i <= index; i++) {
+            newStroke(i).draw(canvas,
+                              paint);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Keyframes go through PNG, which stores colors unpremultiplied, so anti-aliased edges may be a
+     * step off after a round trip. Tiles blend their strokes onto transparent before they are
+     * composited, which rounds anti-aliased edges slightly differently too.
+     */
+    static void assertSimilar(String message, Bitmap expected, Bitmap actual) {
+        assertEquals(message,
+                     expected.getWidth(),
+                     actual.getWidth());
+        assertEquals(message,
+                     expected.getHeight(),
+                     actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                final int e = expected.getPixel(x,
+                                                y);
+                final int a = actual.getPixel(x,
+                                              y);
+                assertTrue(message + " at " + x + ", " + y,
+                           Math.abs(Color.alpha(e) - Color.alpha(a)) <= 2
+                           && Math.abs(Color.red(e) - Color.red(a)) <= 2
+                           && Math.abs(Color.green(e) - Color.green(a)) <= 2
+                           && Math.abs(Color.blue(e) - Color.blue(a)) <= 2);
+            }
+        }
+    }
+
+    static void deleteRecursively(File file) throws IOException {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete " + file);
+        }
+    }
+}
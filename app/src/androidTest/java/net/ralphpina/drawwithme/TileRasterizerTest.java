@@ -0,0 +1,157 @@
+package net.ralphpina.drawwithme;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TileRasterizerTest extends AndroidTestCase {
+
+    private static final int TILE   = TileRasterizer.TILE_SIZE;
+    // not a multiple of the tile size either way, so the last column and row are partial tiles
+    private static final int WIDTH  = TILE * 2 + 88;
+    private static final int HEIGHT = TILE + 44;
+
+    public void testDraw_matchesASingleCanvasAcrossTileSeams() throws Exception {
+        final List<HistoryStroke> strokes = new ArrayList<>();
+        // corner to corner, through every tile
+        strokes.add(stroke(Color.RED,
+                           12,
+                           0,
+                           0,
+                           WIDTH / 2,
+                           HEIGHT / 3,
+                           WIDTH,
+                           HEIGHT));
+        // right along the seams, half of each stroke falls in either tile
+        strokes.add(stroke(Color.BLUE,
+                           20,
+                           TILE,
+                           0,
+                           TILE,
+                           HEIGHT));
+        strokes.add(stroke(Color.GREEN,
+                           20,
+                           0,
+                           TILE,
+                           WIDTH,
+                           TILE));
+        // a wide one that only just reaches over a seam
+        strokes.add(stroke(Color.MAGENTA,
+                           40,
+                           TILE * 2 - 15,
+                           40,
+                           TILE * 2 - 15,
+                           200));
+        // round the corner where four tiles meet
+        strokes.add(stroke(Color.CYAN,
+                           8,
+                           TILE - 30,
+                           TILE - 30,
+                           TILE + 30,
+                           TILE - 30,
+                           TILE + 30,
+                           TILE + 30,
+                           TILE - 30,
+                           TILE + 30));
+
+        assertTiledMatchesSingleCanvas(strokes);
+    }
+
+    public void testDraw_coversThePartialTilesAtTheEdges() throws Exception {
+        final List<HistoryStroke> strokes = new ArrayList<>();
+        // along the right and bottom edges, inside the partial tiles
+        strokes.add(stroke(Color.RED,
+                           10,
+                           WIDTH - 3,
+                           0,
+                           WIDTH - 3,
+                           HEIGHT));
+        strokes.add(stroke(Color.BLUE,
+                           10,
+                           0,
+                           HEIGHT - 3,
+                           WIDTH,
+                           HEIGHT - 3));
+        // partly off the canvas on every side
+        strokes.add(stroke(Color.GREEN,
+                           16,
+                           -50,
+                           HEIGHT / 2,
+                           WIDTH + 50,
+                           HEIGHT / 2));
+        strokes.add(stroke(Color.MAGENTA,
+                           16,
+                           WIDTH - 20,
+                           -50,
+                           WIDTH - 20,
+                           HEIGHT + 50));
+        // wholly off the canvas, but close enough for its width to show
+        strokes.add(stroke(Color.CYAN,
+                           30,
+                           WIDTH + 10,
+                           10,
+                           WIDTH + 10,
+                           HEIGHT - 10));
+
+        assertTiledMatchesSingleCanvas(strokes);
+    }
+
+    public void testDraw_keepsTheOrderOfOverlappingStrokes() throws Exception {
+        final List<HistoryStroke> strokes = new ArrayList<>();
+        // criss-crossing the seam between the first two columns, each over the one before
+        for (int i = 0; i < 20; i++) {
+            strokes.add(stroke(i % 2 == 0 ? Color.RED : Color.BLUE,
+                               6 + i,
+                               TILE - 60 + i * 6,
+                               0,
+                               TILE + 60 - i * 6,
+                               HEIGHT));
+        }
+
+        assertTiledMatchesSingleCanvas(strokes);
+    }
+
+    private static void assertTiledMatchesSingleCanvas(List<HistoryStroke> strokes)
+            throws Exception {
+        // the strokes go on top of what is there, so start from something other than blank
+        final Bitmap expected = Bitmap.createBitmap(WIDTH,
+                                                    HEIGHT,
+                                                    Bitmap.Config.ARGB_8888);
+        expected.eraseColor(Color.WHITE);
+        final Canvas canvas = new Canvas(expected);
+        final Paint paint = HistoryStroke.newPaint();
+        for (HistoryStroke stroke : strokes) {
+            stroke.draw(canvas,
+                        paint);
+        }
+
+        final Bitmap actual = Bitmap.createBitmap(WIDTH,
+                                                  HEIGHT,
+                                                  Bitmap.Config.ARGB_8888);
+        actual.eraseColor(Color.WHITE);
+        new TileRasterizer(WIDTH,
+                           HEIGHT).draw(strokes,
+                                        new Canvas(actual));
+
+        try {
+            StrokeHistoryTest.assertSimilar("tiled",
+                                            expected,
+                                            actual);
+        } finally {
+            expected.recycle();
+            actual.recycle();
+        }
+    }
+
+    private static HistoryStroke stroke(int color, float width, float... points) {
+        return new HistoryStroke(0,
+                                 color,
+                                 width,
+                                 points);
+    }
+}
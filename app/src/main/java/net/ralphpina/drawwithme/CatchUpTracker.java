@@ -0,0 +1,228 @@
+package net.ralphpina.drawwithme;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Keeps track of which of the aggregator's strokes are on the canvas, so catching up neither skips
+ * nor repeats any.
+ * <p>
+ * Every drawing action carries its client's sequence number, and the aggregator announces each
+ * stroke it commits with the range of actions it was folded from. For every client the tracker
+ * remembers the run of consecutive actions drawn live. A committed stroke whose actions all fall in
+ * that run is on the canvas. Any other stroke, one that lost an action on the way or was begun
+ * before we subscribed, is not, and calls for a catch up.
+ * <p>
+ * {@link #getDrawnThrough()} only moves over strokes known to be drawn, one after the other.
+ * Strokes known to be drawn past a gap are remembered, up to {@link #MAX_DRAWN_AHEAD}, until the
+ * gap is filled. A catch up asks for everything past the gap and is answered in numbered pages,
+ * each of which moves it forward once the drawer has taken it. Strokes in a page that were already
+ * drawn live are left out.
+ * <p>
+ * All methods are expected to be called on the main thread, which is where
+ * {@link org.eclipse.paho.android.service.MqttAndroidClient} delivers its callbacks.
+ */
+public class CatchUpTracker {
+
+    public static final int PAGE_NEXT  = 0;
+    // answers an earlier request, ignore it
+    public static final int PAGE_STALE = 1;
+    // a page before it went missing, the catch up has to start over
+    public static final int PAGE_LOST  = 2;
+
+    static final int  MAX_DRAWN_AHEAD = 1024;
+    // a catch up that has not had a page for this long is taken to be lost
+    static final long PAGE_TIMEOUT_MS = 10000;
+
+    // per client, first and last sequence of the run of consecutive actions drawn live
+    private final Map<String, int[]> runs       = new HashMap<>();
+    private final TreeSet<Long>      drawnAhead = new TreeSet<>();
+
+    private long drawnThrough;
+    // newest stroke announced that was not drawn live
+    private long newestMissed;
+
+    private boolean catchingUp;
+    private int     requestId;
+    private int     nextPage;
+    private long    lastProgress;
+
+    /**
+     * @return the newest stroke such that it and every stroke before it are drawn
+     */
+    public long getDrawnThrough() {
+        return drawnThrough;
+    }
+
+    /**
+     * Carries {@link #getDrawnThrough()} over from an earlier tracker.
+     */
+    public void setDrawnThrough(long drawnThrough) {
+        markDrawnThrough(drawnThrough);
+    }
+
+    public boolean isCatchingUp() {
+        return catchingUp;
+    }
+
+    // ===== LIVE ==================================================================================
+
+    /**
+     * Called for every action drawn live, our own included.
+     */
+    public void onActionDrawn(String clientId, int sequence) {
+        final int[] run = runs.get(clientId);
+        if (run == null) {
+            runs.put(clientId,
+                     new int[]{sequence, sequence});
+        } else if (sequence == run[1] + 1) {
+            run[1] = sequence;
+        } else if (!inRun(run,
+                          sequence)) {
+            // actions were lost, or the client started over with new sequence numbers
+            run[0] = sequence;
+            run[1] = sequence;
+        }
+    }
+
+    /**
+     * Called when the aggregator announces a committed stroke.
+     *
+     * @return whether a catch up should be started
+     */
+    public boolean onCommitted(long sequence, String clientId, int firstAction, int lastAction) {
+        if (isDrawn(sequence,
+                    clientId,
+                    firstAction,
+                    lastAction)) {
+            markDrawn(sequence);
+        } else {
+            newestMissed = Math.max(newestMissed,
+                                    sequence);
+        }
+        if (catchingUp) {
+            // the running catch up will cover it, unless its answer went missing
+            return now() - lastProgress >= PAGE_TIMEOUT_MS;
+        }
+        return needsCatchUp();
+    }
+
+    /**
+     * @return whether the stroke is already on the canvas, in which case a catch up leaves it out
+     */
+    public boolean isDrawn(long sequence, String clientId, int firstAction, int lastAction) {
+        if (sequence <= drawnThrough || drawnAhead.contains(sequence)) {
+            return true;
+        }
+        final int[] run = runs.get(clientId);
+        return run != null
+               && lastAction - firstAction >= 0
+               && inRun(run,
+                        firstAction)
+               && inRun(run,
+                        lastAction);
+    }
+
+    // ===== CATCHING UP ===========================================================================
+
+    /**
+     * Starts a catch up from {@link #getCatchUpFrom()}, pages of any running one are stale from
+     * now on.
+     *
+     * @return the request id to send along
+     */
+    public int startCatchUp() {
+        catchingUp = true;
+        requestId++;
+        nextPage = 0;
+        lastProgress = now();
+        return requestId;
+    }
+
+    /**
+     * @return the first stroke not known to be drawn
+     */
+    public long getCatchUpFrom() {
+        return drawnThrough + 1;
+    }
+
+    /**
+     * @return {@link #PAGE_NEXT} if the page is the one the running catch up expects,
+     * {@link #PAGE_STALE} or {@link #PAGE_LOST} otherwise
+     */
+    public int onPage(int requestId, int page) {
+        if (!catchingUp || requestId != this.requestId) {
+            return PAGE_STALE;
+        }
+        if (page != nextPage) {
+            catchingUp = false;
+            return PAGE_LOST;
+        }
+        return PAGE_NEXT;
+    }
+
+    /**
+     * Called once the drawer has taken the page {@link #onPage(int, int)} accepted.
+     *
+     * @param through      sequence of the page's last stroke, 0 if it had none
+     * @param lastSequence the room's newest stroke when the request was answered
+     * @return whether another catch up should be started right away
+     */
+    public boolean onPageDrawn(long through, boolean complete, long lastSequence) {
+        // strokes before the first of the page were in an earlier page or have been evicted
+        markDrawnThrough(complete ? lastSequence : through);
+        nextPage++;
+        lastProgress = now();
+        if (!complete) {
+            return false;
+        }
+        catchingUp = false;
+        return needsCatchUp();
+    }
+
+    /**
+     * Called when the drawer could not take a page, the pages before it still count.
+     */
+    public void onPageNotDrawn() {
+        catchingUp = false;
+    }
+
+    // ===== HELPERS ===============================================================================
+
+    private boolean needsCatchUp() {
+        // a gap before strokes drawn ahead is a stroke whose announcement went missing
+        return newestMissed > drawnThrough || !drawnAhead.isEmpty();
+    }
+
+    private void markDrawn(long sequence) {
+        if (sequence == drawnThrough + 1) {
+            markDrawnThrough(sequence);
+        } else if (sequence > drawnThrough) {
+            drawnAhead.add(sequence);
+            if (drawnAhead.size() > MAX_DRAWN_AHEAD) {
+                // forgetting one only means it is drawn again by a catch up
+                drawnAhead.pollLast();
+            }
+        }
+    }
+
+    private void markDrawnThrough(long sequence) {
+        drawnThrough = Math.max(drawnThrough,
+                                sequence);
+        while (!drawnAhead.isEmpty() && drawnAhead.first() <= drawnThrough + 1) {
+            drawnThrough = Math.max(drawnThrough,
+                                    drawnAhead.pollFirst());
+        }
+    }
+
+    // action sequences start at random and wrap around, so compare by distance from the run start
+    private static boolean inRun(int[] run, int sequence) {
+        final int offset = sequence - run[0];
+        return offset >= 0 && offset <= run[1] - run[0];
+    }
+
+    long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
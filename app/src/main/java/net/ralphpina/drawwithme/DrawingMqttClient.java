@@ -8,6 +8,10 @@ import android.util.Log;
 
 import net.ralphpina.drawwithme.ProtobufMessages.DrawAction;
 import net.ralphpina.drawwithme.ProtobufMessages.Presence;
+import net.ralphpina.drawwithme.ProtobufMessages.Stroke;
+import net.ralphpina.drawwithme.ProtobufMessages.StrokeCommit;
+import net.ralphpina.drawwithme.ProtobufMessages.StrokeRequest;
+import net.ralphpina.drawwithme.ProtobufMessages.StrokeResponse;
 
 import org.eclipse.paho.android.service.MqttAndroidClient;
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
@@ -18,6 +22,8 @@ import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 import static net.ralphpina.drawwithme.ProtobufMessages.DrawAction.TOUCH_DOWN;
@@ -33,22 +39,53 @@ public class DrawingMqttClient {
     private final static String SERVER_URI    = "tcp://iot.eclipse.org:1883";
     private final static String STATUS_TOPIC  = "drawwithme/friends/status";
     private final static String DRAWING_TOPIC = "drawwithme/drawing/change";
+    // the aggregator names rooms after the last level of the drawing topic
+    private final static String ROOM                       = "change";
+    private final static String AGGREGATOR_REQUEST_TOPIC   = "drawwithme/aggregator/request";
+    private final static String AGGREGATOR_RESPONSE_PREFIX = "drawwithme/aggregator/response/";
+    private final static String AGGREGATOR_COMMIT_TOPIC    = "drawwithme/aggregator/committed/"
+                                                             + ROOM;
 
     private final MqttAndroidClient  mqttAndroidClient;
     private final MqttStatusListener statusListener;
     private final SharedPreferences  preferences;
+    private final SendRateController rateController;
+
+    private final MetricsRegistry.Counter reconnects =
+            MetricsRegistry.get().counter(MetricsRegistry.MQTT_RECONNECTS);
+    private final MetricsRegistry.Histogram decodeTime =
+            MetricsRegistry.get().histogram(MetricsRegistry.MQTT_DECODE_US);
+    // looked up once, the topics never change
+    private final MetricsRegistry.TopicMetrics statusMetrics =
+            MetricsRegistry.get().topic(STATUS_TOPIC);
+    private final MetricsRegistry.TopicMetrics drawingMetrics =
+            MetricsRegistry.get().topic(DRAWING_TOPIC);
+    private final MetricsRegistry.TopicMetrics requestMetrics =
+            MetricsRegistry.get().topic(AGGREGATOR_REQUEST_TOPIC);
+    private final MetricsRegistry.TopicMetrics commitMetrics =
+            MetricsRegistry.get().topic(AGGREGATOR_COMMIT_TOPIC);
+    private final String                       responseTopic;
+    private final MetricsRegistry.TopicMetrics responseMetrics;
 
     private String             clientId;
     private MqttDrawerListener drawerListener;
 
+    // which of the aggregator's strokes the drawer has, whether from a catch up or seen live
+    private final CatchUpTracker catchUpTracker = new CatchUpTracker();
+
     public DrawingMqttClient(Context context, final MqttStatusListener statusListener) {
         this.statusListener = statusListener;
         preferences = PreferenceManager.getDefaultSharedPreferences(context.getApplicationContext());
+        rateController = new SendRateController();
 
         mqttAndroidClient = new MqttAndroidClient(context.getApplicationContext(),
                                                   SERVER_URI,
                                                   getClientId());
         mqttAndroidClient.setCallback(getMqttCallback(statusListener));
+
+        responseTopic = AGGREGATOR_RESPONSE_PREFIX + getClientId();
+        responseMetrics = MetricsRegistry.get()
+                                         .topic(responseTopic);
     }
 
     public String getClientId() {
@@ -70,6 +107,21 @@ public class DrawingMqttClient {
         return clientId;
     }
 
+    public SendRateController getSendRateController() {
+        return rateController;
+    }
+
+    /**
+     * @return the newest aggregator stroke already drawn, to carry over to a recreated client
+     */
+    public long getLastCatchUpSequence() {
+        return catchUpTracker.getDrawnThrough();
+    }
+
+    public void setLastCatchUpSequence(long lastCatchUpSequence) {
+        catchUpTracker.setDrawnThrough(lastCatchUpSequence);
+    }
+
     // ===== CONNECTING ============================================================================
 
     public void connect(MqttDrawerListener drawerListener) {
@@ -190,6 +242,61 @@ public class DrawingMqttClient {
                   "=== subscribe to drawing () === exception message = " + ex.getMessage());
             ex.printStackTrace();
         }
+
+        try {
+            mqttAndroidClient.subscribe(AGGREGATOR_COMMIT_TOPIC,
+                                        0,
+                                        null,
+                                        new IMqttActionListener() {
+                                            @Override
+                                            public void onSuccess(IMqttToken asyncActionToken) {
+                                                Log.e(TAG,
+                                                      AGGREGATOR_COMMIT_TOPIC
+                                                      + " subscription === onSuccess() ===");
+                                            }
+
+                                            @Override
+                                            public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                                                Log.e(TAG,
+                                                      AGGREGATOR_COMMIT_TOPIC
+                                                      + "subscription === onFailure() === "
+                                                      + exception.getMessage());
+                                                exception.printStackTrace();
+                                            }
+                                        });
+        } catch (MqttException ex) {
+            Log.e(TAG,
+                  "=== subscribe to commits () === exception message = " + ex.getMessage());
+            ex.printStackTrace();
+        }
+
+        try {
+            mqttAndroidClient.subscribe(responseTopic,
+                                        0,
+                                        null,
+                                        new IMqttActionListener() {
+                                            @Override
+                                            public void onSuccess(IMqttToken asyncActionToken) {
+                                                Log.e(TAG,
+                                                      responseTopic
+                                                      + " subscription === onSuccess() ===");
+                                                requestCatchUp();
+                                            }
+
+                                            @Override
+                                            public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                                                Log.e(TAG,
+                                                      responseTopic
+                                                      + "subscription === onFailure() === "
+                                                      + exception.getMessage());
+                                                exception.printStackTrace();
+                                            }
+                                        });
+        } catch (MqttException ex) {
+            Log.e(TAG,
+                  "=== subscribe to aggregator () === exception message = " + ex.getMessage());
+            ex.printStackTrace();
+        }
     }
 
     // ===== PUBLISHING ============================================================================
@@ -200,6 +307,7 @@ public class DrawingMqttClient {
         presence.userName = statusListener.getUserName();
         presence.activeStatus = activeStatus;
         publish(STATUS_TOPIC,
+                statusMetrics,
                 Presence.toByteArray(presence));
     }
 
@@ -209,18 +317,56 @@ public class DrawingMqttClient {
         drawAction.drawingAction = action;
         drawAction.x = x;
         drawAction.y = y;
+        drawAction.sequence = rateController.nextSequence();
+        // drawn locally as it is published
+        catchUpTracker.onActionDrawn(clientId,
+                                     drawAction.sequence);
 
         publish(DRAWING_TOPIC,
+                drawingMetrics,
                 DrawAction.toByteArray(drawAction));
     }
 
-    private void publish(String topic, byte[] payload) {
+    /**
+     * Asks the aggregator, if one is running, for the strokes drawn in the room that are not on
+     * the canvas yet. They are handed to {@link MqttDrawerListener#catchUp(Stroke[])} a page at a
+     * time as they come in. Any catch up still running is dropped.
+     */
+    public void requestCatchUp() {
+        StrokeRequest request = new StrokeRequest();
+        request.clientId = clientId;
+        request.room = ROOM;
+        request.fromSequence = catchUpTracker.getCatchUpFrom();
+        request.requestId = catchUpTracker.startCatchUp();
+        // not retained, the aggregator would answer it again every time it reconnects
+        publish(AGGREGATOR_REQUEST_TOPIC,
+                requestMetrics,
+                StrokeRequest.toByteArray(request),
+                false);
+    }
+
+    private void publish(String topic, MetricsRegistry.TopicMetrics metrics, byte[] payload) {
+        publish(topic,
+                metrics,
+                payload,
+                true);
+    }
+
+    private void publish(String topic,
+                         MetricsRegistry.TopicMetrics metrics,
+                         byte[] payload,
+                         boolean retained) {
         try {
+            final boolean connected = mqttAndroidClient.isConnected();
             mqttAndroidClient.publish(topic,
                                       payload,
                                       0,
-                                      true);
-            if (!mqttAndroidClient.isConnected()) {
+                                      retained);
+            if (connected) {
+                // publishing while disconnected fails later on, it never reaches the wire
+                metrics.sent(payload.length);
+                rateController.onPublished();
+            } else {
                 statusListener.onDisconnect();
             }
         } catch (MqttException e) {
@@ -237,8 +383,10 @@ public class DrawingMqttClient {
         return new MqttCallbackExtended() {
             @Override
             public void connectComplete(boolean reconnect, String serverURI) {
+                rateController.onConnected();
                 listener.onConnect();
                 if (reconnect) {
+                    reconnects.increment();
                     // Because Clean Session is true, we need to re-subscribe
                     subscribeToTopics();
                 }
@@ -246,21 +394,30 @@ public class DrawingMqttClient {
 
             @Override
             public void connectionLost(Throwable cause) {
+                rateController.onConnectionLost();
                 listener.onDisconnect();
             }
 
             @Override
             public void messageArrived(String topic, MqttMessage message) throws Exception {
+                final long decodeStart = System.nanoTime();
+
                 if (STATUS_TOPIC.equals(topic)) {
+                    statusMetrics.received(message.getPayload().length);
                     Presence presence = Presence.parseFrom(message.getPayload());
+                    decodeTime.record((System.nanoTime() - decodeStart) / 1000);
                     listener.onUserConnection(presence.userName,
                                               presence.activeStatus);
                 } else if (DRAWING_TOPIC.equals(topic)) {
-
+                    drawingMetrics.received(message.getPayload().length);
                     DrawAction drawAction = DrawAction.parseFrom(message.getPayload());
+                    decodeTime.record((System.nanoTime() - decodeStart) / 1000);
                     if (drawAction.clientId.equals(clientId)) {
+                        rateController.onEcho(drawAction.sequence);
                         return;
                     }
+                    catchUpTracker.onActionDrawn(drawAction.clientId,
+                                                 drawAction.sequence);
                     switch (drawAction.drawingAction) {
                         case TOUCH_DOWN:
                             drawerListener.touchDown(drawAction.clientId,
@@ -276,16 +433,65 @@ public class DrawingMqttClient {
                             drawerListener.touchUp(drawAction.clientId);
                             break;
                     }
+                } else if (AGGREGATOR_COMMIT_TOPIC.equals(topic)) {
+                    commitMetrics.received(message.getPayload().length);
+                    StrokeCommit commit = StrokeCommit.parseFrom(message.getPayload());
+                    decodeTime.record((System.nanoTime() - decodeStart) / 1000);
+                    if (catchUpTracker.onCommitted(commit.sequence,
+                                                   commit.clientId,
+                                                   commit.firstAction,
+                                                   commit.lastAction)) {
+                        requestCatchUp();
+                    }
+                } else if (responseTopic.equals(topic)) {
+                    responseMetrics.received(message.getPayload().length);
+                    StrokeResponse response = StrokeResponse.parseFrom(message.getPayload());
+                    decodeTime.record((System.nanoTime() - decodeStart) / 1000);
+                    onCatchUpPage(response);
                 }
             }
 
             @Override
             public void deliveryComplete(IMqttDeliveryToken token) {
-                // noop
+                rateController.onDeliveryComplete();
             }
         };
     }
 
+    private void onCatchUpPage(StrokeResponse response) {
+        switch (catchUpTracker.onPage(response.requestId,
+                                      response.page)) {
+            case CatchUpTracker.PAGE_STALE:
+                return;
+            case CatchUpTracker.PAGE_LOST:
+                requestCatchUp();
+                return;
+        }
+        final List<Stroke> missing = new ArrayList<>(response.strokes.length);
+        for (Stroke stroke : response.strokes) {
+            if (!catchUpTracker.isDrawn(stroke.sequence,
+                                        stroke.clientId,
+                                        stroke.firstAction,
+                                        stroke.lastAction)) {
+                missing.add(stroke);
+            }
+        }
+        if (!missing.isEmpty()
+            && (drawerListener == null
+                || !drawerListener.catchUp(missing.toArray(new Stroke[missing.size()])))) {
+            // asked for again, from this page on, with the next catch up
+            catchUpTracker.onPageNotDrawn();
+            return;
+        }
+        final long through = response.strokes.length == 0
+                             ? 0 : response.strokes[response.strokes.length - 1].sequence;
+        if (catchUpTracker.onPageDrawn(through,
+                                       response.complete,
+                                       response.lastSequence)) {
+            requestCatchUp();
+        }
+    }
+
     public interface MqttStatusListener {
         void onConnect();
 
@@ -302,5 +508,13 @@ public class DrawingMqttClient {
         void touchMove(String userId, float x, float y);
 
         void touchUp(String userId);
+
+        /**
+         * A page of the strokes drawn while we were away, oldest first. Called for every page as
+         * it arrives, each one is drawn below everything already on the canvas.
+         *
+         * @return false if they could not be drawn, they are asked for again on the next connect
+         */
+        boolean catchUp(Stroke[] strokes);
     }
 }
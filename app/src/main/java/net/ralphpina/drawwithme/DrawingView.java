@@ -8,21 +8,52 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.os.SystemClock;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-
-import static net.ralphpina.drawwithme.ProtobufMessages.DrawAction.TOUCH_DOWN;
-import static net.ralphpina.drawwithme.ProtobufMessages.DrawAction.TOUCH_MOVE;
-import static net.ralphpina.drawwithme.ProtobufMessages.DrawAction.TOUCH_UP;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 public class DrawingView extends View implements DrawingMqttClient.MqttDrawerListener {
 
+    private static final String TAG = "DrawingView";
+
     private final static int[] COLORS          = new int[]{Color.BLACK, Color.BLUE, Color.CYAN, Color.DKGRAY, Color.MAGENTA, Color.RED, Color.YELLOW};
     private static final float TOUCH_TOLERANCE = 4;
+    // strokes read from a history per bulk draw, bounds memory when restoring long sessions
+    private static final int   RESTORE_BATCH   = 5000;
+
+    private static final String HISTORY_DIRECTORY = "history";
+    private static final int    KEPT_SESSIONS     = 5;
+    private static final String STATE_SUPER       = "super";
+    private static final String STATE_SESSION     = "session";
+
+    // bulk draws of every view run here one at a time, off the main thread. Shared, so a view
+    // recreated with its activity does not leave a thread behind.
+    private static final ExecutorService BULK = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable,
+                                                     "DrawingView");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
 
     // general
     private Bitmap bitmap;
@@ -33,6 +64,31 @@ public class DrawingView extends View implements DrawingMqttClient.MqttDrawerLis
     private Map<String, Painter> painters;
 
     private DrawingMqttClient mqttClient;
+    private StrokeSimplifier  simplifier;
+    private StrokeHistory     history;
+    // survives recreation through the saved instance state, so the canvas does too
+    private String            sessionName;
+    private HistoryPlayback   playback;
+    private Paint             playbackPaint;
+    // shown instead of the canvas while a replay runs, the canvas itself is left alone
+    private Bitmap            replayBitmap;
+    private Canvas            replayCanvas;
+    // restores not composited yet, until then the canvas is missing strokes the history has
+    private int               pendingRestores;
+
+    // publishes the simplifier's held sample when the finger rests on the screen
+    private final Runnable flushHeld = new Runnable() {
+        @Override
+        public void run() {
+            simplifier.flushHeld(SystemClock.uptimeMillis());
+            scheduleFlushHeld();
+        }
+    };
+
+    private final MetricsRegistry.Gauge painterCount =
+            MetricsRegistry.get().gauge(MetricsRegistry.VIEW_PAINTERS);
+    private final MetricsRegistry.Histogram drawTime =
+            MetricsRegistry.get().histogram(MetricsRegistry.VIEW_DRAW_US);
 
     public DrawingView(Context context) {
         super(context);
@@ -64,10 +120,88 @@ public class DrawingView extends View implements DrawingMqttClient.MqttDrawerLis
     private void init() {
         painters = new HashMap<>();
         bitmapPaint = new Paint(Paint.DITHER_FLAG);
+        playbackPaint = HistoryStroke.newPaint();
     }
 
-    public void setMqttClient(DrawingMqttClient mqttClient) {
+    public void setMqttClient(final DrawingMqttClient mqttClient) {
         this.mqttClient = mqttClient;
+        simplifier = new StrokeSimplifier(new StrokeSimplifier.Publisher() {
+            @Override
+            public void publish(int action, float x, float y) {
+                mqttClient.publishDrawingAction(action,
+                                                x,
+                                                y);
+            }
+        },
+                                          mqttClient.getSendRateController());
+    }
+
+    /**
+     * @return the history of the current session, or null when the view is not attached
+     */
+    public StrokeHistory getHistory() {
+        return history;
+    }
+
+    @Override
+    protected Parcelable onSaveInstanceState() {
+        final Bundle state = new Bundle();
+        state.putParcelable(STATE_SUPER,
+                            super.onSaveInstanceState());
+        state.putString(STATE_SESSION,
+                        sessionName);
+        return state;
+    }
+
+    @Override
+    protected void onRestoreInstanceState(Parcelable state) {
+        if (state instanceof Bundle) {
+            final Bundle bundle = (Bundle) state;
+            sessionName = bundle.getString(STATE_SESSION);
+            state = bundle.getParcelable(STATE_SUPER);
+        }
+        super.onRestoreInstanceState(state);
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (isInEditMode()) {
+            return;
+        }
+        // instance state is restored before the view is attached, a recreated activity picks up
+        // the session it was drawing in
+        if (sessionName == null) {
+            sessionName = StrokeHistory.newSessionName();
+        }
+        final File root = new File(getContext().getFilesDir(),
+                                   HISTORY_DIRECTORY);
+        final File session = new File(root,
+                                      sessionName);
+        try {
+            history = StrokeHistory.open(session);
+        } catch (IOException e) {
+            Log.e(TAG,
+                  "Error opening history: " + e.getMessage());
+        }
+        BULK.execute(new Runnable() {
+            @Override
+            public void run() {
+                StrokeHistory.deleteOldSessions(root,
+                                                KEPT_SESSIONS,
+                                                session);
+            }
+        });
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        stopReplay();
+        if (history != null) {
+            history.close();
+            history = null;
+        }
+        super.onDetachedFromWindow();
     }
 
     @Override
@@ -77,17 +211,26 @@ public class DrawingView extends View implements DrawingMqttClient.MqttDrawerLis
                             oldw,
                             oldh);
 
+        // a replay is drawn at the old size
+        stopReplay();
         bitmap = Bitmap.createBitmap(w,
                                      h,
                                      Bitmap.Config.ARGB_8888);
         canvas = new Canvas(bitmap);
+
+        if (history != null) {
+            // the new bitmap is blank, draw everything committed to the session so far back in
+            restore(history,
+                    System.currentTimeMillis());
+        }
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
+        final long start = System.nanoTime();
         super.onDraw(canvas);
 
-        canvas.drawBitmap(bitmap,
+        canvas.drawBitmap(replayBitmap != null ? replayBitmap : bitmap,
                           0,
                           0,
                           bitmapPaint);
@@ -97,6 +240,7 @@ public class DrawingView extends View implements DrawingMqttClient.MqttDrawerLis
             canvas.drawPath(painter.circlePath,
                             painter.circlePaint);
         }
+        drawTime.record((System.nanoTime() - start) / 1000);
     }
 
     @Override
@@ -129,6 +273,310 @@ public class DrawingView extends View implements DrawingMqttClient.MqttDrawerLis
         }
     }
 
+    @Override
+    public boolean catchUp(final ProtobufMessages.Stroke[] strokes) {
+        if (bitmap == null) {
+            // not laid out yet, nothing to draw them on
+            return false;
+        }
+        // same colors as if we had seen the strokes live, painters are only touched here
+        final Map<String, Paint> paints = new HashMap<>();
+        for (ProtobufMessages.Stroke stroke : strokes) {
+            if (!paints.containsKey(stroke.clientId)) {
+                addToPaintersIfNeeded(stroke.clientId);
+                paints.put(stroke.clientId,
+                           painters.get(stroke.clientId).paint);
+            }
+        }
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        BULK.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<HistoryStroke> converted = new ArrayList<>(strokes.length);
+                for (ProtobufMessages.Stroke stroke : strokes) {
+                    final Paint paint = paints.get(stroke.clientId);
+                    converted.add(new HistoryStroke(stroke.timestamp,
+                                                    paint.getColor(),
+                                                    paint.getStrokeWidth(),
+                                                    stroke.points));
+                }
+                drawLayer(converted,
+                          width,
+                          height,
+                          true);
+            }
+        });
+        return true;
+    }
+
+    // ===== BULK DRAWING ==========================================================================
+
+    /**
+     * Draws a batch of strokes below everything already on the canvas. The strokes are rasterized
+     * in parallel off the main thread and composited in one go once they are all done. They are
+     * not added to the history, they were recorded wherever they came from.
+     */
+    public void applyStrokes(List<HistoryStroke> strokes) {
+        drawBelow(strokes,
+                  false);
+    }
+
+    /**
+     * @param record whether to add the strokes to the history once they are on the canvas, they
+     *               are stamped with the time they land so the session stays in order
+     */
+    private void drawBelow(final List<HistoryStroke> strokes, final boolean record) {
+        if (bitmap == null) {
+            return;
+        }
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        BULK.execute(new Runnable() {
+            @Override
+            public void run() {
+                drawLayer(strokes,
+                          width,
+                          height,
+                          record);
+            }
+        });
+    }
+
+    /**
+     * Rasterizes {@code strokes} into a layer of the given size and composites it below the canvas
+     * on the main thread. Runs on the bulk thread.
+     */
+    private void drawLayer(final List<HistoryStroke> strokes,
+                           int width,
+                           int height,
+                           final boolean record) {
+        final Bitmap layer = Bitmap.createBitmap(width,
+                                                 height,
+                                                 Bitmap.Config.ARGB_8888);
+        try {
+            new TileRasterizer(width,
+                               height).draw(strokes,
+                                            new Canvas(layer));
+        } catch (InterruptedException e) {
+            layer.recycle();
+            return;
+        } catch (ExecutionException e) {
+            Log.e(TAG,
+                  "Error drawing strokes: " + e.getCause());
+            layer.recycle();
+            return;
+        }
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (!compositeBelow(layer)) {
+                    if (record) {
+                        // resized meanwhile, these strokes are not in the history to restore from
+                        // yet, so draw them again at the new size
+                        drawBelow(strokes,
+                                  true);
+                    }
+                    return;
+                }
+                if (record && history != null) {
+                    final long now = System.currentTimeMillis();
+                    final List<HistoryStroke> recorded = new ArrayList<>(strokes.size());
+                    for (HistoryStroke stroke : strokes) {
+                        recorded.add(new HistoryStroke(now,
+                                                       stroke.getColor(),
+                                                       stroke.getWidth(),
+                                                       stroke.getPoints()));
+                    }
+                    history.append(recorded,
+                                   getKeyframeSource());
+                }
+            }
+        });
+    }
+
+    /**
+     * Draws every stroke {@code source} recorded up to {@code until} below everything already on
+     * the canvas, reading and rasterizing the history in batches off the main thread.
+     */
+    public void restore(final StrokeHistory source, final long until) {
+        if (bitmap == null) {
+            return;
+        }
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        pendingRestores++;
+        BULK.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap layer = drawHistory(source,
+                                                 until,
+                                                 width,
+                                                 height);
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        pendingRestores--;
+                        if (layer != null) {
+                            // dropped if resized meanwhile, onSizeChanged queued a new restore
+                            compositeBelow(layer);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Runs on the bulk thread.
+     *
+     * @return the strokes {@code source} recorded up to {@code until} in a layer of the given size,
+     * or null if they could not be read or drawn
+     */
+    private static Bitmap drawHistory(StrokeHistory source, long until, int width, int height) {
+        final Bitmap layer = Bitmap.createBitmap(width,
+                                                 height,
+                                                 Bitmap.Config.ARGB_8888);
+        final Canvas layerCanvas = new Canvas(layer);
+        final TileRasterizer rasterizer = new TileRasterizer(width,
+                                                             height);
+        final List<HistoryStroke> batch = new ArrayList<>(RESTORE_BATCH);
+        StrokeHistory.Cursor cursor = null;
+        try {
+            // strokes appended just before may still be queued for writing
+            source.flush();
+            cursor = source.openFromStart();
+            while (cursor.peekTimestamp() <= until) {
+                batch.add(cursor.next());
+                if (batch.size() == RESTORE_BATCH) {
+                    rasterizer.draw(batch,
+                                    layerCanvas);
+                    batch.clear();
+                }
+            }
+            rasterizer.draw(batch,
+                            layerCanvas);
+            return layer;
+        } catch (IOException | InterruptedException e) {
+            Log.e(TAG,
+                  "Error restoring history: " + e.getMessage());
+            layer.recycle();
+            return null;
+        } catch (ExecutionException e) {
+            Log.e(TAG,
+                  "Error drawing history: " + e.getCause());
+            layer.recycle();
+            return null;
+        } finally {
+            if (cursor != null) {
+                try {
+                    cursor.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    // ===== PLAYBACK ==============================================================================
+
+    /**
+     * Replays the current session from its first stroke up to now, shown in place of the canvas
+     * until it finishes or is stopped. Live strokes keep being drawn on top while it plays.
+     *
+     * @param speed see {@link HistoryPlayback#setSpeed(float)}
+     * @return the playback, to change its speed or stop it, or null if there is nothing to replay
+     */
+    public HistoryPlayback replay(float speed) {
+        if (history == null || bitmap == null) {
+            return null;
+        }
+        stopReplay();
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        playback = new HistoryPlayback(history,
+                                       Long.MIN_VALUE,
+                                       System.currentTimeMillis(),
+                                       width,
+                                       height,
+                                       speed,
+                                       new HistoryPlayback.Listener() {
+                                           @Override
+                                           public void onSeek(Bitmap start) {
+                                               if (bitmap == null
+                                                   || bitmap.getWidth() != start.getWidth()
+                                                   || bitmap.getHeight() != start.getHeight()) {
+                                                   start.recycle();
+                                                   stopReplay();
+                                                   return;
+                                               }
+                                               replayBitmap = start;
+                                               replayCanvas = new Canvas(start);
+                                               invalidate();
+                                           }
+
+                                           @Override
+                                           public void onStrokes(List<HistoryStroke> strokes) {
+                                               for (HistoryStroke stroke : strokes) {
+                                                   stroke.draw(replayCanvas,
+                                                               playbackPaint);
+                                               }
+                                               invalidate();
+                                           }
+
+                                           @Override
+                                           public void onFinished() {
+                                               stopReplay();
+                                           }
+                                       });
+        playback.start();
+        return playback;
+    }
+
+    public void stopReplay() {
+        if (playback != null) {
+            playback.stop();
+            playback = null;
+        }
+        if (replayBitmap != null) {
+            replayBitmap.recycle();
+            replayBitmap = null;
+            replayCanvas = null;
+            invalidate();
+        }
+    }
+
+    /**
+     * @return the canvas for the history to take keyframes from, or null while one would be
+     * wrong
+     */
+    private Bitmap getKeyframeSource() {
+        // encoding a keyframe would compete with a running replay for the history's disk, and
+        // until a restore is composited the canvas lacks what came before
+        return playback != null || pendingRestores > 0 ? null : bitmap;
+    }
+
+    /**
+     * @return false if the canvas was resized while the layer was drawn, it is recycled unused
+     */
+    private boolean compositeBelow(Bitmap layer) {
+        if (bitmap == null
+            || bitmap.getWidth() != layer.getWidth()
+            || bitmap.getHeight() != layer.getHeight()) {
+            layer.recycle();
+            return false;
+        }
+        final Canvas layerCanvas = new Canvas(layer);
+        layerCanvas.drawBitmap(bitmap,
+                               0,
+                               0,
+                               bitmapPaint);
+        bitmap.recycle();
+        bitmap = layer;
+        canvas = layerCanvas;
+        invalidate();
+        return true;
+    }
+
     @Override
     public boolean onTouchEvent(MotionEvent event) {
         float x = event.getX();
@@ -136,35 +584,47 @@ public class DrawingView extends View implements DrawingMqttClient.MqttDrawerLis
 
         switch (event.getAction()) {
             case MotionEvent.ACTION_DOWN:
-                mqttClient.publishDrawingAction(TOUCH_DOWN,
-                                                x,
-                                                y);
+                simplifier.touchDown(x,
+                                     y,
+                                     event.getEventTime());
                 touchDown(mqttClient.getClientId(),
                           x,
                           y);
                 break;
             case MotionEvent.ACTION_MOVE:
-                mqttClient.publishDrawingAction(TOUCH_MOVE,
-                                                x,
-                                                y);
+                simplifier.touchMove(x,
+                                     y,
+                                     event.getEventTime());
+                scheduleFlushHeld();
                 touchMove(mqttClient.getClientId(),
                           x,
                           y);
                 break;
             case MotionEvent.ACTION_UP:
-                mqttClient.publishDrawingAction(TOUCH_UP,
-                                                -1,
-                                                -1);
+                removeCallbacks(flushHeld);
+                simplifier.touchUp(event.getEventTime());
                 touchUp(mqttClient.getClientId());
                 break;
         }
         return true;
     }
 
+    private void scheduleFlushHeld() {
+        removeCallbacks(flushHeld);
+        final long deadline = simplifier.getFlushDeadline();
+        if (deadline != -1) {
+            // event times and the simplifier's deadline are both uptime millis
+            postDelayed(flushHeld,
+                        Math.max(0,
+                                 deadline - SystemClock.uptimeMillis()));
+        }
+    }
+
     private void addToPaintersIfNeeded(String userId) {
         if (!painters.containsKey(userId)) {
             painters.put(userId,
                          new Painter(userId));
+            painterCount.set(painters.size());
         }
     }
 
@@ -176,6 +636,9 @@ public class DrawingView extends View implements DrawingMqttClient.MqttDrawerLis
         private final Paint           paint;
         private       Path            circlePath;
         private final Paint           circlePaint;
+        // accepted points of the current stroke, as x, y pairs
+        private       float[]         points = new float[64];
+        private       int             pointCount;
 
         public Painter(String userId) {
             final boolean self = userId.equals(mqttClient.getClientId());
@@ -215,6 +678,10 @@ public class DrawingView extends View implements DrawingMqttClient.MqttDrawerLis
                         y);
             mX = x;
             mY = y;
+
+            pointCount = 0;
+            addPoint(x,
+                     y);
         }
 
         public void touchMove(float x, float y) {
@@ -227,6 +694,8 @@ public class DrawingView extends View implements DrawingMqttClient.MqttDrawerLis
                             (y + mY) / 2);
                 mX = x;
                 mY = y;
+                addPoint(x,
+                         y);
 
                 circlePath.reset();
                 circlePath.addCircle(mX,
@@ -243,8 +712,31 @@ public class DrawingView extends View implements DrawingMqttClient.MqttDrawerLis
             // commit the path to our offscreen
             canvas.drawPath(path,
                             paint);
+            if (replayCanvas != null) {
+                replayCanvas.drawPath(path,
+                                      paint);
+            }
             // kill this so we don't double draw
             path.reset();
+
+            if (history != null && pointCount > 0) {
+                history.append(new HistoryStroke(System.currentTimeMillis(),
+                                                 paint.getColor(),
+                                                 paint.getStrokeWidth(),
+                                                 Arrays.copyOf(points,
+                                                               pointCount)),
+                               getKeyframeSource());
+            }
+            pointCount = 0;
+        }
+
+        private void addPoint(float x, float y) {
+            if (pointCount + 2 > points.length) {
+                points = Arrays.copyOf(points,
+                                       points.length * 2);
+            }
+            points[pointCount++] = x;
+            points[pointCount++] = y;
         }
     }
 }
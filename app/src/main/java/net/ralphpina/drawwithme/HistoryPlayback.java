@@ -0,0 +1,213 @@
+package net.ralphpina.drawwithme;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Replays a {@link StrokeHistory} between two points in time, at a speed that can be changed while
+ * it plays. Strokes are streamed off disk on a background thread and handed to the
+ * {@link Listener} on the main thread in batches of the strokes whose time has come.
+ * <p>
+ * Only one batch is ever waiting for the main thread. While it waits, the strokes that come due are
+ * gathered into the next batch, up to {@link #MAX_BATCH}, after which reading the history waits
+ * too. A fast playback or a busy main thread therefore slows the playback down instead of queueing
+ * up the whole history in the main looper.
+ */
+public class HistoryPlayback implements Runnable {
+
+    private static final String TAG = "HistoryPlayback";
+
+    // longest we sleep at once, so speed changes and stop() are picked up quickly
+    private static final long MAX_SLEEP_MS = 100;
+    private static final int  MAX_BATCH    = 256;
+
+    private final StrokeHistory history;
+    private final long          from;
+    private final long          until;
+    private final int           width;
+    private final int           height;
+    private final Listener      listener;
+    private final Handler       handler   = new Handler(Looper.getMainLooper());
+    // one permit per batch that may be waiting for the main thread
+    private final Semaphore     handOvers = new Semaphore(1);
+
+    private volatile float   speed;
+    private volatile boolean stopped;
+    private          Thread  thread;
+
+    /**
+     * @param until last point in time played, strokes recorded after it are left out
+     * @param speed see {@link #setSpeed(float)}
+     */
+    public HistoryPlayback(StrokeHistory history,
+                           long from,
+                           long until,
+                           int width,
+                           int height,
+                           float speed,
+                           Listener listener) {
+        this.history = history;
+        this.from = from;
+        this.until = until;
+        this.width = width;
+        this.height = height;
+        this.listener = listener;
+        setSpeed(speed);
+    }
+
+    public void start() {
+        thread = new Thread(this,
+                            TAG);
+        thread.start();
+    }
+
+    /**
+     * Stops the playback, the listener is not called again after this returns on the main thread.
+     */
+    public void stop() {
+        stopped = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * @param speed session time played per unit of real time, 1 plays back as drawn and 0 pauses
+     * @throws IllegalArgumentException if {@code speed} is negative or not a number
+     */
+    public void setSpeed(float speed) {
+        if (!(speed >= 0)) {
+            throw new IllegalArgumentException("speed must be 0 or more, was " + speed);
+        }
+        this.speed = speed;
+    }
+
+    @Override
+    public void run() {
+        StrokeHistory.Cursor cursor = null;
+        try {
+            cursor = history.seek(from,
+                                  width,
+                                  height);
+            final Bitmap bitmap = cursor.getBitmap();
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (stopped) {
+                        bitmap.recycle();
+                    } else {
+                        listener.onSeek(bitmap);
+                    }
+                }
+            });
+
+            // session time we have played up to, nothing happens until the first stroke anyway
+            final long first = peekUntil(cursor);
+            long position = first == Long.MAX_VALUE ? from : Math.max(from,
+                                                                      first);
+            List<HistoryStroke> batch = new ArrayList<>();
+            while (!stopped) {
+                final long next = peekUntil(cursor);
+                if (next != Long.MAX_VALUE && next <= position && speed > 0
+                    && batch.size() < MAX_BATCH) {
+                    batch.add(cursor.next());
+                } else if (!batch.isEmpty() && handOvers.tryAcquire()) {
+                    handOver(batch);
+                    batch = new ArrayList<>();
+                } else if (batch.size() == MAX_BATCH) {
+                    handOvers.acquire();
+                    handOver(batch);
+                    batch = new ArrayList<>();
+                } else if (next == Long.MAX_VALUE && batch.isEmpty()) {
+                    break;
+                } else {
+                    position = sleepTowards(position,
+                                            next);
+                }
+            }
+        } catch (InterruptedException ignore) {
+        } catch (IOException e) {
+            Log.e(TAG,
+                  "Error reading history: " + e.getMessage());
+        } finally {
+            if (cursor != null) {
+                try {
+                    cursor.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!stopped) {
+                    listener.onFinished();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the timestamp of the next stroke to play, or {@link Long#MAX_VALUE} if there is none
+     */
+    private long peekUntil(StrokeHistory.Cursor cursor) throws IOException {
+        final long next = cursor.peekTimestamp();
+        return next > until ? Long.MAX_VALUE : next;
+    }
+
+    /**
+     * Sleeps until {@code target} comes up at the current speed, or {@link #MAX_SLEEP_MS} at most.
+     *
+     * @return the new position
+     */
+    private long sleepTowards(long position, long target) throws InterruptedException {
+        final float currentSpeed = speed;
+        long sleep = MAX_SLEEP_MS;
+        if (currentSpeed > 0 && target != Long.MAX_VALUE) {
+            sleep = Math.max(1,
+                             Math.min(MAX_SLEEP_MS,
+                                      (long) ((target - position) / currentSpeed)));
+        }
+        final long start = SystemClock.uptimeMillis();
+        Thread.sleep(sleep);
+        return position + (long) ((SystemClock.uptimeMillis() - start) * currentSpeed);
+    }
+
+    private void handOver(final List<HistoryStroke> batch) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!stopped) {
+                        listener.onStrokes(batch);
+                    }
+                } finally {
+                    handOvers.release();
+                }
+            }
+        });
+    }
+
+    public interface Listener {
+        /**
+         * @param bitmap the canvas at the starting point, owned by the listener from now on
+         */
+        void onSeek(Bitmap bitmap);
+
+        /**
+         * @param strokes the strokes that have come due since the last call, oldest first
+         */
+        void onStrokes(List<HistoryStroke> strokes);
+
+        void onFinished();
+    }
+}
@@ -0,0 +1,90 @@
+package net.ralphpina.drawwithme;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+
+/**
+ * A finished stroke, as committed to the bitmap by {@link DrawingView.Painter#touchUp()}.
+ * <p>
+ * Only the points the painter accepted are kept, so {@link #toPath()} rebuilds exactly the path
+ * that was drawn.
+ */
+public class HistoryStroke {
+
+    private final long    timestamp;
+    private final int     color;
+    private final float   width;
+    // x, y pairs
+    private final float[] points;
+
+    public HistoryStroke(long timestamp, int color, float width, float[] points) {
+        this.timestamp = timestamp;
+        this.color = color;
+        this.width = width;
+        this.points = points;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getColor() {
+        return color;
+    }
+
+    public float getWidth() {
+        return width;
+    }
+
+    public float[] getPoints() {
+        return points;
+    }
+
+    public Path toPath() {
+        final Path path = new Path();
+        if (points.length < 2) {
+            return path;
+        }
+        float mX = points[0];
+        float mY = points[1];
+        path.moveTo(mX,
+                    mY);
+        for (int i = 2; i + 1 < points.length; i += 2) {
+            final float x = points[i];
+            final float y = points[i + 1];
+            path.quadTo(mX,
+                        mY,
+                        (x + mX) / 2,
+                        (y + mY) / 2);
+            mX = x;
+            mY = y;
+        }
+        path.lineTo(mX,
+                    mY);
+        return path;
+    }
+
+    /**
+     * @param paint a paint from {@link #newPaint()}, its color and width are overwritten
+     */
+    public void draw(Canvas canvas, Paint paint) {
+        paint.setColor(color);
+        paint.setStrokeWidth(width);
+        canvas.drawPath(toPath(),
+                        paint);
+    }
+
+    /**
+     * @return a paint set up like a painter's, for use with {@link #draw(Canvas, Paint)}
+     */
+    public static Paint newPaint() {
+        final Paint paint = new Paint();
+        paint.setAntiAlias(true);
+        paint.setDither(true);
+        paint.setStyle(Paint.Style.STROKE);
+        paint.setStrokeJoin(Paint.Join.ROUND);
+        paint.setStrokeCap(Paint.Cap.ROUND);
+        return paint;
+    }
+}
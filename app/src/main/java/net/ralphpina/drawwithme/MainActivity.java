@@ -3,20 +3,35 @@ package net.ralphpina.drawwithme;
 import android.annotation.SuppressLint;
 import android.content.DialogInterface;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.text.Editable;
 import android.text.TextWatcher;
+import android.util.Log;
+import android.view.View;
 import android.widget.EditText;
 import android.widget.TextView;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+
 public class MainActivity extends AppCompatActivity implements DrawingMqttClient.MqttStatusListener {
 
+    private static final String TAG = "MainActivity";
+
     private static final String CONNECTED    = "Connected";
     private static final String DISCONNECTED = "Disonnected";
 
+    private static final String STATE_CATCH_UP_SEQUENCE = "catchUpSequence";
+
+    private static final long METRICS_REFRESH_MS = 500;
+    private static final long EXPORT_INTERVAL_MS = 1000;
+
     private AlertDialog dialog;
     private String name            = "";
     private String connectedStatus = "";
@@ -24,9 +39,21 @@ public class MainActivity extends AppCompatActivity implements DrawingMqttClient
     private DrawingView       drawingView;
     private RecyclerView      recyclerView;
     private TextView          nameAndStatus;
+    private TextView          metricsOverlay;
     private HistoryAdapter    adapter;
     private DrawingMqttClient client;
 
+    private final Handler  handler        = new Handler();
+    private final Runnable refreshMetrics = new Runnable() {
+        @Override
+        public void run() {
+            metricsOverlay.setText(MetricsRegistry.get()
+                                                  .dump());
+            handler.postDelayed(this,
+                                METRICS_REFRESH_MS);
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -34,9 +61,23 @@ public class MainActivity extends AppCompatActivity implements DrawingMqttClient
 
         client = new DrawingMqttClient(this,
                                        this);
+        if (savedInstanceState != null) {
+            // the drawing view keeps its session, so it already has the strokes up to here
+            client.setLastCatchUpSequence(savedInstanceState.getLong(STATE_CATCH_UP_SEQUENCE));
+        }
 
         drawingView = (DrawingView) findViewById(R.id.drawing_view);
         nameAndStatus = (TextView) findViewById(R.id.name_status);
+        metricsOverlay = (TextView) findViewById(R.id.metrics_overlay);
+
+        // long press the status bar to show the debug metrics overlay
+        nameAndStatus.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                toggleMetricsOverlay();
+                return true;
+            }
+        });
 
         recyclerView = (RecyclerView) findViewById(R.id.recycler_view);
         final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
@@ -57,14 +98,129 @@ public class MainActivity extends AppCompatActivity implements DrawingMqttClient
         } else {
             enterNameDialog();
         }
+        if (metricsOverlay.getVisibility() == View.VISIBLE) {
+            handler.post(refreshMetrics);
+        }
     }
 
     @Override
     protected void onPause() {
         client.disconnect();
+        handler.removeCallbacks(refreshMetrics);
         super.onPause();
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putLong(STATE_CATCH_UP_SEQUENCE,
+                         client.getLastCatchUpSequence());
+    }
+
+    /**
+     * Besides the usual activity dump and the metrics, takes commands to look at the session
+     * history:
+     * <pre>
+     * adb shell dumpsys activity net.ralphpina.drawwithme history replay [speed]
+     * adb shell dumpsys activity net.ralphpina.drawwithme history stop
+     * adb shell dumpsys activity net.ralphpina.drawwithme history export [interval ms]
+     * </pre>
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (args != null && args.length > 0 && "history".equals(args[0])) {
+            dumpHistory(prefix,
+                        writer,
+                        args);
+            return;
+        }
+        super.dump(prefix,
+                   fd,
+                   writer,
+                   args);
+        MetricsRegistry.get()
+                       .dump(prefix,
+                             writer);
+    }
+
+    private void dumpHistory(String prefix, PrintWriter writer, String[] args) {
+        final StrokeHistory history = drawingView.getHistory();
+        if (history == null) {
+            writer.println(prefix + "no history, the drawing view is not attached");
+            return;
+        }
+        final String command = args.length > 1 ? args[1] : "";
+        try {
+            switch (command) {
+                case "replay":
+                    final float speed = args.length > 2 ? Float.parseFloat(args[2]) : 1;
+                    // same check as HistoryPlayback.setSpeed, which would throw on the main thread
+                    if (!(speed >= 0)) {
+                        writer.println(prefix + "speed must be 0 or more");
+                        return;
+                    }
+                    drawingView.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            drawingView.replay(speed);
+                        }
+                    });
+                    writer.println(prefix + "replaying session " + history.getSessionName()
+                                   + " at " + speed + "x");
+                    break;
+                case "stop":
+                    drawingView.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            drawingView.stopReplay();
+                        }
+                    });
+                    break;
+                case "export":
+                    final long interval = args.length > 2 ? Long.parseLong(args[2])
+                                                          : EXPORT_INTERVAL_MS;
+                    final File output = new File(getFilesDir(),
+                                                 "export/" + history.getSessionName());
+                    exportHistory(history,
+                                  output,
+                                  interval,
+                                  drawingView.getWidth(),
+                                  drawingView.getHeight());
+                    writer.println(prefix + "exporting frames every " + interval + "ms to "
+                                   + output);
+                    break;
+                default:
+                    writer.println(prefix + "usage: history replay [speed] | stop | export "
+                                   + "[interval ms]");
+            }
+        } catch (NumberFormatException e) {
+            writer.println(prefix + "not a number: " + e.getMessage());
+        }
+    }
+
+    private void exportHistory(final StrokeHistory history,
+                               final File output,
+                               final long interval,
+                               final int width,
+                               final int height) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final int frames = history.exportFrames(output,
+                                                            interval,
+                                                            width,
+                                                            height);
+                    Log.i(TAG,
+                          "Exported " + frames + " frames to " + output);
+                } catch (IOException e) {
+                    Log.e(TAG,
+                          "Error exporting history: " + e.getMessage());
+                }
+            }
+        }).start();
+    }
+
     private void enterNameDialog() {
         final AlertDialog.Builder builder = new AlertDialog.Builder(this);
 
@@ -105,6 +261,16 @@ public class MainActivity extends AppCompatActivity implements DrawingMqttClient
               .setEnabled(false);
     }
 
+    private void toggleMetricsOverlay() {
+        if (metricsOverlay.getVisibility() == View.VISIBLE) {
+            metricsOverlay.setVisibility(View.GONE);
+            handler.removeCallbacks(refreshMetrics);
+        } else {
+            metricsOverlay.setVisibility(View.VISIBLE);
+            handler.post(refreshMetrics);
+        }
+    }
+
     @SuppressLint("SetTextI18n")
     private void updateConnectedStatus() {
         nameAndStatus.setText(name + " - " + connectedStatus);
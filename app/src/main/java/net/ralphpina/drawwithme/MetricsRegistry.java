@@ -0,0 +1,272 @@
+package net.ralphpina.drawwithme;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process wide counters, gauges and histograms.
+ * <p>
+ * Recording never takes a lock: every metric is backed by atomics, and looking a metric up by name
+ * only allocates the first time that name is seen. Callers on hot paths should still hold on to
+ * the metric they got back rather than looking it up on every event.
+ * <p>
+ * Everything can be written out as text with {@link #dump(String, PrintWriter)}, which is what
+ * {@code adb shell dumpsys activity net.ralphpina.drawwithme} and the debug overlay show.
+ */
+public final class MetricsRegistry {
+
+    // ===== WELL KNOWN METRICS ====================================================================
+
+    public static final String MQTT_RECONNECTS       = "mqtt.reconnects";
+    public static final String MQTT_DECODE_US        = "mqtt.decode_us";
+    public static final String LINK_RTT_MS           = "link.rtt_ms";
+    public static final String LINK_IN_FLIGHT        = "link.in_flight";
+    public static final String LINK_LEVEL            = "link.level";
+    public static final String STROKE_POINTS_IN      = "stroke.points_in";
+    public static final String STROKE_POINTS_OUT     = "stroke.points_out";
+    public static final String STROKE_POINTS_DROPPED = "stroke.points_dropped";
+    public static final String VIEW_PAINTERS         = "view.painters";
+    public static final String VIEW_DRAW_US          = "view.draw_us";
+
+    private static final MetricsRegistry INSTANCE = new MetricsRegistry();
+
+    private final long startTime = System.nanoTime();
+
+    private final ConcurrentMap<String, Counter>      counters   = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Gauge>        gauges     = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram>    histograms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, TopicMetrics> topics     = new ConcurrentHashMap<>();
+
+    public static MetricsRegistry get() {
+        return INSTANCE;
+    }
+
+    private MetricsRegistry() {
+    }
+
+    public Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            final Counter created = new Counter();
+            counter = counters.putIfAbsent(name,
+                                           created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    public Gauge gauge(String name) {
+        Gauge gauge = gauges.get(name);
+        if (gauge == null) {
+            final Gauge created = new Gauge();
+            gauge = gauges.putIfAbsent(name,
+                                       created);
+            if (gauge == null) {
+                gauge = created;
+            }
+        }
+        return gauge;
+    }
+
+    public Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            final Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(name,
+                                               created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    public TopicMetrics topic(String topic) {
+        TopicMetrics metrics = topics.get(topic);
+        if (metrics == null) {
+            final TopicMetrics created = new TopicMetrics();
+            metrics = topics.putIfAbsent(topic,
+                                         created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    // ===== EXPORT ================================================================================
+
+    public void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Metrics (uptime " + (System.nanoTime() - startTime) / 1000000000L + "s):");
+
+        writer.print(prefix);
+        writer.println("  Counters:");
+        for (Map.Entry<String, Counter> entry : new TreeMap<>(counters).entrySet()) {
+            writer.print(prefix);
+            writer.println("    " + entry.getKey() + " = " + entry.getValue().get());
+        }
+
+        writer.print(prefix);
+        writer.println("  Gauges:");
+        for (Map.Entry<String, Gauge> entry : new TreeMap<>(gauges).entrySet()) {
+            writer.print(prefix);
+            writer.println("    " + entry.getKey() + " = " + entry.getValue().get());
+        }
+
+        writer.print(prefix);
+        writer.println("  Histograms:");
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            final Histogram histogram = entry.getValue();
+            writer.print(prefix);
+            writer.println("    " + entry.getKey()
+                           + " count=" + histogram.getCount()
+                           + " mean=" + histogram.getMean()
+                           + " p50<=" + histogram.getPercentile(50)
+                           + " p90<=" + histogram.getPercentile(90)
+                           + " p99<=" + histogram.getPercentile(99)
+                           + " max=" + histogram.getMax());
+        }
+
+        writer.print(prefix);
+        writer.println("  Topics:");
+        for (Map.Entry<String, TopicMetrics> entry : new TreeMap<>(topics).entrySet()) {
+            final TopicMetrics metrics = entry.getValue();
+            writer.print(prefix);
+            writer.println("    " + entry.getKey());
+            writer.print(prefix);
+            writer.println("      in  " + metrics.messagesIn.get() + " msgs, "
+                           + metrics.bytesIn.get() + " bytes");
+            writer.print(prefix);
+            writer.println("      out " + metrics.messagesOut.get() + " msgs, "
+                           + metrics.bytesOut.get() + " bytes");
+        }
+    }
+
+    public String dump() {
+        final StringWriter text = new StringWriter();
+        final PrintWriter writer = new PrintWriter(text);
+        dump("",
+             writer);
+        writer.flush();
+        return text.toString();
+    }
+
+    // ===== METRICS ===============================================================================
+
+    public static final class Counter {
+
+        private final AtomicLong value = new AtomicLong();
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    public static final class Gauge {
+
+        private final AtomicLong value = new AtomicLong();
+
+        public void set(long value) {
+            this.value.set(value);
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    /**
+     * Records non-negative values into power of two buckets, so percentiles are reported as the
+     * upper bound of the bucket they fall in.
+     */
+    public static final class Histogram {
+
+        private static final int BUCKETS = 64;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong      count   = new AtomicLong();
+        private final AtomicLong      sum     = new AtomicLong();
+        private final AtomicLong      max     = new AtomicLong();
+
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long current;
+            while (value > (current = max.get())) {
+                if (max.compareAndSet(current,
+                                      value)) {
+                    break;
+                }
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getMean() {
+            final long count = this.count.get();
+            return count == 0 ? 0 : sum.get() / count;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public long getPercentile(int percentile) {
+            final long count = this.count.get();
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = (count * percentile + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    // bucket i holds values in [2^(i-1), 2^i)
+                    return i == 0 ? 0 : (1L << i) - 1;
+                }
+            }
+            return max.get();
+        }
+    }
+
+    public static final class TopicMetrics {
+
+        private final AtomicLong messagesIn  = new AtomicLong();
+        private final AtomicLong bytesIn     = new AtomicLong();
+        private final AtomicLong messagesOut = new AtomicLong();
+        private final AtomicLong bytesOut    = new AtomicLong();
+
+        public void received(int bytes) {
+            messagesIn.incrementAndGet();
+            bytesIn.addAndGet(bytes);
+        }
+
+        public void sent(int bytes) {
+            messagesOut.incrementAndGet();
+            bytesOut.addAndGet(bytes);
+        }
+    }
+}
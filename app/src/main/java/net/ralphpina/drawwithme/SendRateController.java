@@ -0,0 +1,212 @@
+package net.ralphpina.drawwithme;
+
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Watches how healthy the link to the broker is and tells the sending side how much to hold back.
+ * <p>
+ * Two signals are tracked. The round trip time is measured from our own drawing actions coming
+ * back to us on the drawing topic, matched by sequence number, and smoothed the same way TCP
+ * smooths its RTT. The number of in-flight publishes is the count of publishes sent while connected
+ * that have not seen {@code deliveryComplete} yet, which grows while the client is queueing behind
+ * a slow link.
+ * <p>
+ * Once nothing has been sent or echoed for {@link #RTT_HALF_LIFE_MS} the smoothed RTT is halved for
+ * every half life that passes, so a congested spell followed by a pause does not keep the level up
+ * with a measurement of a link that may have long recovered.
+ * <p>
+ * The congestion level goes up as soon as either signal crosses a threshold and comes back down
+ * one level at a time once both have stayed under half of it for {@link #RECOVERY_MS}.
+ * <p>
+ * All methods are expected to be called on the main thread, which is where
+ * {@link org.eclipse.paho.android.service.MqttAndroidClient} delivers its callbacks.
+ */
+public class SendRateController {
+
+    private static final String TAG = "SendRateController";
+
+    public static final int LEVEL_CLEAR     = 0;
+    public static final int LEVEL_BUSY      = 1;
+    public static final int LEVEL_CONGESTED = 2;
+
+    private static final long[]  RTT_THRESHOLDS_MS     = new long[]{0, 300, 800};
+    private static final int[]   IN_FLIGHT_THRESHOLDS  = new int[]{0, 16, 48};
+    private static final float[] TOLERANCE_SCALES      = new float[]{1, 2, 4};
+    private static final long[]  MOVE_INTERVALS_MS     = new long[]{0, 50, 120};
+    private static final long    RECOVERY_MS           = 1000;
+    private static final long    RTT_HALF_LIFE_MS      = 1000;
+    // power of two, sequence numbers are matched modulo this window
+    private static final int     ECHO_WINDOW           = 256;
+
+    private final MetricsRegistry.Gauge rttGauge =
+            MetricsRegistry.get().gauge(MetricsRegistry.LINK_RTT_MS);
+    private final MetricsRegistry.Gauge inFlightGauge =
+            MetricsRegistry.get().gauge(MetricsRegistry.LINK_IN_FLIGHT);
+    private final MetricsRegistry.Gauge levelGauge =
+            MetricsRegistry.get().gauge(MetricsRegistry.LINK_LEVEL);
+
+    private final long[] sentTimes     = new long[ECHO_WINDOW];
+    private final int[]  sentSequences = new int[ECHO_WINDOW];
+
+    private int  sequence;
+    private int  inFlight;
+    private long smoothedRtt;
+    // last send or echo, the smoothed RTT decays from here
+    private long lastActivity;
+    private int  level;
+    private long clearSince;
+
+    public SendRateController() {
+        // retained messages from an earlier session must not match this session's sequences
+        sequence = new Random().nextInt();
+    }
+
+    // ===== SIGNALS ===============================================================================
+
+    /**
+     * Called for each drawing action about to be published.
+     *
+     * @return the sequence number to stamp on it
+     */
+    public int nextSequence() {
+        final int next = sequence++;
+        lastActivity = now();
+        sentTimes[next & (ECHO_WINDOW - 1)] = lastActivity;
+        sentSequences[next & (ECHO_WINDOW - 1)] = next;
+        return next;
+    }
+
+    /**
+     * Called when one of our own drawing actions comes back from the broker.
+     */
+    public void onEcho(int sequence) {
+        final int slot = sequence & (ECHO_WINDOW - 1);
+        if (sentSequences[slot] != sequence || sentTimes[slot] == 0) {
+            return;
+        }
+        lastActivity = now();
+        final long sample = lastActivity - sentTimes[slot];
+        sentTimes[slot] = 0;
+        smoothedRtt = smoothedRtt == 0 ? sample : smoothedRtt + (sample - smoothedRtt) / 8;
+        updateLevel();
+    }
+
+    /**
+     * Called for each publish handed to a connected client, publishes that fail or are queued
+     * while disconnected never see {@code deliveryComplete}.
+     */
+    public void onPublished() {
+        inFlight++;
+        updateLevel();
+    }
+
+    public void onDeliveryComplete() {
+        if (inFlight > 0) {
+            inFlight--;
+        }
+        updateLevel();
+    }
+
+    /**
+     * Publishes outstanding before a reconnect will never complete, start counting from scratch.
+     */
+    public void onConnected() {
+        inFlight = 0;
+        updateLevel();
+    }
+
+    /**
+     * Publishes outstanding when the connection drops will never complete either.
+     */
+    public void onConnectionLost() {
+        inFlight = 0;
+        updateLevel();
+    }
+
+    // ===== ADVICE ================================================================================
+
+    public int getLevel() {
+        updateLevel();
+        return level;
+    }
+
+    /**
+     * @return how much to widen the stroke simplification tolerance by
+     */
+    public float getToleranceScale() {
+        return TOLERANCE_SCALES[getLevel()];
+    }
+
+    /**
+     * @return the minimum time to leave between two published touch moves
+     */
+    public long getMoveIntervalMs() {
+        return MOVE_INTERVALS_MS[getLevel()];
+    }
+
+    public long getSmoothedRttMs() {
+        decayRtt(now());
+        return smoothedRtt;
+    }
+
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    private void updateLevel() {
+        final long now = now();
+        decayRtt(now);
+        rttGauge.set(smoothedRtt);
+        inFlightGauge.set(inFlight);
+
+        int measured = LEVEL_CLEAR;
+        int cleared = LEVEL_CLEAR;
+        for (int i = LEVEL_BUSY; i <= LEVEL_CONGESTED; i++) {
+            if (smoothedRtt >= RTT_THRESHOLDS_MS[i] || inFlight >= IN_FLIGHT_THRESHOLDS[i]) {
+                measured = i;
+            }
+            if (smoothedRtt >= RTT_THRESHOLDS_MS[i] / 2
+                || inFlight >= IN_FLIGHT_THRESHOLDS[i] / 2) {
+                cleared = i;
+            }
+        }
+
+        if (measured > level) {
+            setLevel(measured);
+            clearSince = 0;
+        } else if (cleared < level) {
+            if (clearSince == 0) {
+                clearSince = now;
+            } else if (now - clearSince >= RECOVERY_MS) {
+                setLevel(level - 1);
+                clearSince = now;
+            }
+        } else {
+            clearSince = 0;
+        }
+    }
+
+    private void setLevel(int level) {
+        Log.d(TAG,
+              "level " + this.level + " -> " + level + ", rtt = " + smoothedRtt + "ms, in flight = "
+              + inFlight);
+        this.level = level;
+        levelGauge.set(level);
+    }
+
+    private void decayRtt(long now) {
+        final long halvings = (now - lastActivity) / RTT_HALF_LIFE_MS;
+        if (smoothedRtt == 0 || halvings == 0) {
+            return;
+        }
+        smoothedRtt = halvings >= Long.SIZE ? 0 : smoothedRtt >> halvings;
+        lastActivity += halvings * RTT_HALF_LIFE_MS;
+    }
+
+    // overridden in tests
+    long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
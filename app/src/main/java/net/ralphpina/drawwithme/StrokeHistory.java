@@ -0,0 +1,659 @@
+package net.ralphpina.drawwithme;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * On disk, timestamped record of every stroke committed to the canvas during a session.
+ * <p>
+ * Strokes are appended to a log file. Every {@link #KEYFRAME_STROKES} strokes, or
+ * {@link #KEYFRAME_INTERVAL_MS} after the last keyframe, a copy of the canvas is saved as a PNG
+ * keyframe and its log offset is added to the keyframe index. Seeking to a point in time decodes
+ * the closest keyframe before it and replays the short tail of strokes after it, and everything
+ * that walks the history reads the log as a stream, so a session never has to fit in memory.
+ * <p>
+ * Writes happen on a background thread. Reading is safe from any thread, strokes still being
+ * written are simply not seen yet.
+ * <p>
+ * Each history lives in its own session directory, see {@link #newSessionName()} and
+ * {@link #deleteOldSessions(File, int, File)}. There is only ever one writer per directory in the
+ * process: {@link #open(File)} hands out the instance that is already open, and one opened after
+ * the last was closed waits for its writes to finish before it looks at the files.
+ */
+public class StrokeHistory {
+
+    private static final String TAG = "StrokeHistory";
+
+    private static final String LOG_FILE             = "strokes.log";
+    private static final String INDEX_FILE           = "keyframes.idx";
+    private static final String KEYFRAME_FILE        = "keyframe-%05d.png";
+    private static final String FRAME_FILE           = "frame-%05d.png";
+    private static final int    KEYFRAME_STROKES     = 200;
+    private static final long   KEYFRAME_INTERVAL_MS = 30000;
+    // floats in a stroke record, anything more means the log is corrupt
+    private static final int    MAX_POINT_FLOATS     = 1 << 20;
+    // timestamp, color, width and point count
+    private static final int    RECORD_HEADER_BYTES  = 8 + 4 + 4 + 4;
+
+    // the latest instance opened on each directory, guarded by itself
+    private static final Map<File, StrokeHistory> OPEN = new HashMap<>();
+
+    private final File           directory;
+    private final File           logFile;
+    private final List<Keyframe> keyframes = new CopyOnWriteArrayList<>();
+    private final ExecutorService io       = Executors.newSingleThreadExecutor();
+
+    // guarded by OPEN
+    private int references = 1;
+
+    // only touched on the io thread
+    private DataOutputStream log;
+    private DataOutputStream index;
+    private long             logSize;
+
+    // only touched by the thread appending strokes
+    private int  strokesSinceKeyframe;
+    private long lastKeyframeTime;
+
+    /**
+     * Opens the history kept in {@code directory}, creating it if needed. New strokes are added
+     * after any already there. Every call must be matched by a {@link #close()}.
+     */
+    public static StrokeHistory open(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        final File key = directory.getAbsoluteFile();
+        synchronized (OPEN) {
+            final StrokeHistory current = OPEN.get(key);
+            if (current != null && current.references > 0) {
+                current.references++;
+                return current;
+            }
+            final StrokeHistory opened = new StrokeHistory(key,
+                                                           current);
+            OPEN.put(key,
+                     opened);
+            return opened;
+        }
+    }
+
+    /**
+     * @param previous the instance last opened on {@code directory}, closed but maybe still
+     *                 writing, or null
+     */
+    private StrokeHistory(File directory, final StrokeHistory previous) {
+        this.directory = directory;
+        logFile = new File(directory,
+                           LOG_FILE);
+        io.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (previous != null) {
+                        previous.io.awaitTermination(Long.MAX_VALUE,
+                                                     TimeUnit.MILLISECONDS);
+                    }
+                    openFiles();
+                } catch (IOException | InterruptedException e) {
+                    Log.e(TAG,
+                          "Error opening history: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    // ===== SESSIONS ==============================================================================
+
+    /**
+     * @return a directory name for a new session, later sessions sort after earlier ones
+     */
+    public static String newSessionName() {
+        // millis have 13 digits until the year 2286, so these sort as numbers do
+        return String.valueOf(System.currentTimeMillis());
+    }
+
+    /**
+     * Deletes all but the newest {@code keep} session directories under {@code root}, never
+     * {@code inUse}. This does disk work, so it should not be called on the main thread.
+     */
+    public static void deleteOldSessions(File root, int keep, File inUse) {
+        final File[] sessions = root.listFiles();
+        if (sessions == null || sessions.length <= keep) {
+            return;
+        }
+        Arrays.sort(sessions);
+        for (int i = 0; i < sessions.length - keep; i++) {
+            if (sessions[i].equals(inUse)) {
+                continue;
+            }
+            final File[] files = sessions[i].listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (!file.delete()) {
+                        Log.e(TAG,
+                              "Could not delete " + file);
+                    }
+                }
+            }
+            if (!sessions[i].delete()) {
+                Log.e(TAG,
+                      "Could not delete " + sessions[i]);
+            }
+        }
+    }
+
+    public String getSessionName() {
+        return directory.getName();
+    }
+
+    // ===== RECORDING =============================================================================
+
+    /**
+     * Records a stroke that has just been drawn onto {@code canvasBitmap}, see
+     * {@link #append(List, Bitmap)}.
+     */
+    public void append(HistoryStroke stroke, Bitmap canvasBitmap) {
+        append(Collections.singletonList(stroke),
+               canvasBitmap);
+    }
+
+    /**
+     * Records strokes, oldest first, that have all just been drawn onto {@code canvasBitmap}. At
+     * most one keyframe is taken, after the last of them.
+     *
+     * @param canvasBitmap the whole canvas, or null while it does not hold everything recorded so
+     *                     far, in which case the keyframe is put off until the next append
+     */
+    public void append(final List<HistoryStroke> strokes, Bitmap canvasBitmap) {
+        if (strokes.isEmpty()) {
+            return;
+        }
+        io.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (HistoryStroke stroke : strokes) {
+                        writeStroke(stroke);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG,
+                          "Error writing stroke: " + e.getMessage());
+                }
+            }
+        });
+
+        final HistoryStroke stroke = strokes.get(strokes.size() - 1);
+        strokesSinceKeyframe += strokes.size();
+        if (canvasBitmap != null
+            && (strokesSinceKeyframe >= KEYFRAME_STROKES
+                || stroke.getTimestamp() - lastKeyframeTime >= KEYFRAME_INTERVAL_MS)) {
+            strokesSinceKeyframe = 0;
+            lastKeyframeTime = stroke.getTimestamp();
+            // copying is a memcpy, the slow PNG encoding happens on the io thread
+            final Bitmap copy = canvasBitmap.copy(Bitmap.Config.ARGB_8888,
+                                                  false);
+            io.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writeKeyframe(stroke.getTimestamp(),
+                                      copy);
+                    } catch (IOException e) {
+                        Log.e(TAG,
+                              "Error writing keyframe: " + e.getMessage());
+                    } finally {
+                        copy.recycle();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Waits until everything appended so far has been written, so that a reader sees it. Blocks, so
+     * it should not be called on the main thread.
+     */
+    public void flush() throws InterruptedException {
+        try {
+            final Future<?> written = io.submit(new Runnable() {
+                @Override
+                public void run() {
+                    // everything submitted before this has run by now
+                }
+            });
+            written.get();
+        } catch (RejectedExecutionException e) {
+            // closed, what was appended before is still being written
+            io.awaitTermination(Long.MAX_VALUE,
+                                TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Gives up this reference to the history. Once every {@link #open(File)} has been matched, the
+     * remaining writes are finished in the background and the files closed. Closing it again after
+     * that does nothing.
+     */
+    public void close() {
+        synchronized (OPEN) {
+            if (references == 0 || --references > 0) {
+                return;
+            }
+        }
+        io.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (log != null) {
+                    closeQuietly(log);
+                    closeQuietly(index);
+                }
+                synchronized (OPEN) {
+                    if (OPEN.get(directory) == StrokeHistory.this) {
+                        OPEN.remove(directory);
+                    }
+                }
+            }
+        });
+        io.shutdown();
+    }
+
+    /**
+     * Loads the keyframe index and opens the files for appending. A record cut short by a crash
+     * is cut off both files, so new records start where readers expect them.
+     */
+    private void openFiles() throws IOException {
+        final File indexFile = new File(directory,
+                                        INDEX_FILE);
+        final long indexSize = readIndex(indexFile);
+        logSize = findLogEnd();
+        // keyframes taken after the last complete stroke cannot be trusted either
+        long keptIndexSize = indexSize;
+        while (!keyframes.isEmpty() && keyframes.get(keyframes.size() - 1).offset > logSize) {
+            final Keyframe dropped = keyframes.remove(keyframes.size() - 1);
+            keptIndexSize -= 8 + 8 + 2 + dropped.file.length();
+        }
+        truncate(indexFile,
+                 keptIndexSize);
+        truncate(logFile,
+                 logSize);
+
+        log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile,
+                                                                                 true)));
+        index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile,
+                                                                                   true)));
+    }
+
+    /**
+     * @return the size of the log up to the end of its last complete stroke
+     */
+    private long findLogEnd() throws IOException {
+        if (!logFile.exists()) {
+            return 0;
+        }
+        // everything before the last keyframe was complete when the keyframe was taken
+        long end = keyframes.isEmpty() ? 0 : keyframes.get(keyframes.size() - 1).offset;
+        final long length = logFile.length();
+        if (end > length) {
+            return 0;
+        }
+        final FileInputStream file = new FileInputStream(logFile);
+        try {
+            file.getChannel()
+                .position(end);
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(file));
+            while (end + RECORD_HEADER_BYTES <= length) {
+                in.skipBytes(8 + 4 + 4);
+                final int floats = in.readInt();
+                final long recordEnd = end + RECORD_HEADER_BYTES + 4L * floats;
+                if (floats < 0 || floats > MAX_POINT_FLOATS || recordEnd > length) {
+                    break;
+                }
+                in.skipBytes(4 * floats);
+                end = recordEnd;
+            }
+        } finally {
+            file.close();
+        }
+        return end;
+    }
+
+    private static void truncate(File file, long size) throws IOException {
+        if (!file.exists() || file.length() <= size) {
+            return;
+        }
+        final RandomAccessFile out = new RandomAccessFile(file,
+                                                          "rw");
+        try {
+            out.setLength(size);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeStroke(HistoryStroke stroke) throws IOException {
+        if (log == null) {
+            throw new IOException("History in " + directory + " is not open");
+        }
+        final float[] points = stroke.getPoints();
+        // a record longer than readers accept would make the rest of the log unreadable
+        final int floats = Math.min(points.length,
+                                    MAX_POINT_FLOATS);
+        log.writeLong(stroke.getTimestamp());
+        log.writeInt(stroke.getColor());
+        log.writeFloat(stroke.getWidth());
+        log.writeInt(floats);
+        for (int i = 0; i < floats; i++) {
+            log.writeFloat(points[i]);
+        }
+        // readers may be streaming the log right now
+        log.flush();
+        logSize += RECORD_HEADER_BYTES + 4 * floats;
+    }
+
+    private void writeKeyframe(long timestamp, Bitmap bitmap) throws IOException {
+        if (index == null) {
+            throw new IOException("History in " + directory + " is not open");
+        }
+        final String name = String.format(Locale.US,
+                                          KEYFRAME_FILE,
+                                          keyframes.size());
+        writePng(bitmap,
+                 new File(directory,
+                          name));
+
+        index.writeLong(timestamp);
+        index.writeLong(logSize);
+        index.writeUTF(name);
+        index.flush();
+        keyframes.add(new Keyframe(timestamp,
+                                   logSize,
+                                   name));
+    }
+
+    /**
+     * @return the size of the index up to the end of its last complete entry
+     */
+    private long readIndex(File indexFile) throws IOException {
+        if (!indexFile.exists()) {
+            return 0;
+        }
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile)));
+        long size = 0;
+        try {
+            while (true) {
+                final Keyframe keyframe = new Keyframe(in.readLong(),
+                                                       in.readLong(),
+                                                       in.readUTF());
+                keyframes.add(keyframe);
+                // names are ASCII, so writeUTF wrote a byte per character after its length
+                size += 8 + 8 + 2 + keyframe.file.length();
+            }
+        } catch (EOFException ignore) {
+        } finally {
+            in.close();
+        }
+        return size;
+    }
+
+    // ===== READING ===============================================================================
+
+    /**
+     * Rebuilds the canvas as it was at {@code time}: the last keyframe at or before it, plus the
+     * strokes logged after that keyframe up to {@code time}.
+     *
+     * @param width  size of the canvas to start from when there is no keyframe yet
+     * @param height size of the canvas to start from when there is no keyframe yet
+     * @return a cursor positioned on the first stroke after {@code time}, the caller must close it
+     */
+    public Cursor seek(long time, int width, int height) throws IOException {
+        final Keyframe keyframe = findKeyframe(time);
+
+        Bitmap bitmap = null;
+        long offset = 0;
+        if (keyframe != null) {
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inMutable = true;
+            bitmap = BitmapFactory.decodeFile(new File(directory,
+                                                       keyframe.file).getPath(),
+                                              options);
+            offset = keyframe.offset;
+        }
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(width,
+                                         height,
+                                         Bitmap.Config.ARGB_8888);
+            offset = 0;
+        }
+
+        final FileInputStream in = new FileInputStream(logFile);
+        in.getChannel()
+          .position(offset);
+        final Cursor cursor = new Cursor(new DataInputStream(new BufferedInputStream(in)),
+                                         bitmap);
+        cursor.drawUntil(time);
+        return cursor;
+    }
+
+    /**
+     * @return a cursor on the oldest stroke that does not draw, its {@link Cursor#getBitmap()} is
+     * null. The caller must close it.
+     */
+    public Cursor openFromStart() throws IOException {
+        final FileInputStream in = new FileInputStream(logFile);
+        return new Cursor(new DataInputStream(new BufferedInputStream(in)),
+                          null);
+    }
+
+    /**
+     * Writes the canvas as it was every {@code frameIntervalMs} of session time to
+     * {@code outputDirectory} as numbered PNG files. Only one frame is held in memory at a time.
+     * This does disk and bitmap work, so it should not be called on the main thread.
+     *
+     * @return the number of frames written
+     */
+    public int exportFrames(File outputDirectory, long frameIntervalMs, int width, int height)
+            throws IOException {
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            throw new IOException("Could not create " + outputDirectory);
+        }
+
+        final Cursor cursor = seek(Long.MIN_VALUE,
+                                   width,
+                                   height);
+        int frames = 0;
+        try {
+            long time = cursor.peekTimestamp();
+            while (time != Long.MAX_VALUE) {
+                cursor.drawUntil(time);
+                writePng(cursor.getBitmap(),
+                         new File(outputDirectory,
+                                  String.format(Locale.US,
+                                                FRAME_FILE,
+                                                frames++)));
+                final long next = cursor.peekTimestamp();
+                if (next == Long.MAX_VALUE) {
+                    break;
+                }
+                // skip idle stretches instead of writing the same frame over and over
+                time = Math.max(time + frameIntervalMs,
+                                next);
+            }
+        } finally {
+            cursor.close();
+        }
+        return frames;
+    }
+
+    private Keyframe findKeyframe(long time) {
+        // keyframes are written in time order
+        final Keyframe[] snapshot = keyframes.toArray(new Keyframe[0]);
+        int low = 0;
+        int high = snapshot.length - 1;
+        Keyframe found = null;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            if (snapshot[middle].timestamp <= time) {
+                found = snapshot[middle];
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    private static void writePng(Bitmap bitmap, File file) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.PNG,
+                            100,
+                            out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    // ===== TYPES =================================================================================
+
+    private static class Keyframe {
+
+        private final long   timestamp;
+        // log size when the keyframe was taken, the first stroke not in the keyframe starts here
+        private final long   offset;
+        private final String file;
+
+        Keyframe(long timestamp, long offset, String file) {
+            this.timestamp = timestamp;
+            this.offset = offset;
+            this.file = file;
+        }
+    }
+
+    /**
+     * A position in the history, along with the canvas as it was at that position.
+     */
+    public static class Cursor implements Closeable {
+
+        private final DataInputStream in;
+        private final Bitmap          bitmap;
+        private final Canvas          canvas;
+        private final Paint           paint = HistoryStroke.newPaint();
+
+        private HistoryStroke peeked;
+        private boolean       finished;
+
+        private Cursor(DataInputStream in, Bitmap bitmap) {
+            this.in = in;
+            this.bitmap = bitmap;
+            canvas = bitmap == null ? null : new Canvas(bitmap);
+        }
+
+        public Bitmap getBitmap() {
+            return bitmap;
+        }
+
+        /**
+         * @return the timestamp of the next stroke, or {@link Long#MAX_VALUE} at the end
+         */
+        public long peekTimestamp() throws IOException {
+            final HistoryStroke stroke = peek();
+            return stroke == null ? Long.MAX_VALUE : stroke.getTimestamp();
+        }
+
+        /**
+         * Moves past the next stroke without drawing it into {@link #getBitmap()}.
+         *
+         * @return the stroke, or null at the end of the history
+         */
+        public HistoryStroke next() throws IOException {
+            final HistoryStroke stroke = peek();
+            peeked = null;
+            return stroke;
+        }
+
+        /**
+         * Draws every stroke up to and including {@code time} into {@link #getBitmap()}.
+         */
+        public void drawUntil(long time) throws IOException {
+            while (peek() != null && peeked.getTimestamp() <= time) {
+                next().draw(canvas,
+                            paint);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private HistoryStroke peek() throws IOException {
+            if (peeked == null && !finished) {
+                peeked = read();
+                finished = peeked == null;
+            }
+            return peeked;
+        }
+
+        private HistoryStroke read() throws IOException {
+            try {
+                final long timestamp = in.readLong();
+                final int color = in.readInt();
+                final float width = in.readFloat();
+                final int floats = in.readInt();
+                if (floats < 0 || floats > MAX_POINT_FLOATS) {
+                    throw new IOException("Corrupt stroke record with " + floats + " points");
+                }
+                final float[] points = new float[floats];
+                for (int i = 0; i < points.length; i++) {
+                    points[i] = in.readFloat();
+                }
+                return new HistoryStroke(timestamp,
+                                         color,
+                                         width,
+                                         points);
+            } catch (EOFException e) {
+                // the end of the log, or a stroke that is still being written
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package net.ralphpina.drawwithme;
+
+import android.util.Log;
+
+import static net.ralphpina.drawwithme.ProtobufMessages.DrawAction.TOUCH_DOWN;
+import static net.ralphpina.drawwithme.ProtobufMessages.DrawAction.TOUCH_MOVE;
+import static net.ralphpina.drawwithme.ProtobufMessages.DrawAction.TOUCH_UP;
+
+/**
+ * Thins out the local user's touch samples before they are published.
+ * <p>
+ * Samples that would not move a remote {@link DrawingView.Painter} past its touch tolerance are
+ * dropped. The rest are decimated along straight chords, no curve is fitted: samples are held
+ * back while the chord from the previously published point to the newest sample passes within the
+ * error bound of every held sample. The last held sample is published once it no longer does, the
+ * stroke turns sharply there, or it has been held for {@link #MAX_HOLD_MS}, and the samples before
+ * it are dropped. The error bound widens as the pen moves faster and narrows as the canvas is
+ * zoomed in.
+ * <p>
+ * When the {@link SendRateController} reports congestion the error bound is widened further and
+ * touch moves are spaced out to its move interval, so a slow link gets coarser strokes rather
+ * than a growing backlog.
+ */
+public class StrokeSimplifier {
+
+    private static final String TAG = "StrokeSimplifier";
+
+    // same as DrawingView.TOUCH_TOLERANCE, anything closer is ignored by remote painters
+    static final float MIN_DISTANCE  = 4;
+    static final float MAX_TOLERANCE = 6;
+    static final long  MAX_HOLD_MS   = 60;
+
+    private static final float  BASE_TOLERANCE     = 1.5f;
+    // extra tolerance per px/ms of pen velocity
+    private static final float  VELOCITY_FACTOR    = 1.5f;
+    private static final float  VELOCITY_SMOOTHING = 0.3f;
+    private static final double MAX_TURN_ANGLE     = Math.toRadians(35);
+    private static final int    MAX_PENDING        = 64;
+
+    private final Publisher          publisher;
+    private final SendRateController rateController;
+
+    private float zoom = 1;
+
+    // last published point
+    private float anchorX;
+    private float anchorY;
+    private long  anchorTime;
+
+    // samples received since the anchor, as x, y pairs
+    private final float[] pending = new float[MAX_PENDING * 2];
+    private       int     pendingCount;
+
+    private float lastX;
+    private float lastY;
+    private long  lastTime;
+    private float velocity;
+
+    private long pointsIn;
+    private long pointsOut;
+
+    private final MetricsRegistry.Counter pointsInCounter =
+            MetricsRegistry.get().counter(MetricsRegistry.STROKE_POINTS_IN);
+    private final MetricsRegistry.Counter pointsOutCounter =
+            MetricsRegistry.get().counter(MetricsRegistry.STROKE_POINTS_OUT);
+    private final MetricsRegistry.Counter pointsDroppedCounter =
+            MetricsRegistry.get().counter(MetricsRegistry.STROKE_POINTS_DROPPED);
+
+    public StrokeSimplifier(Publisher publisher, SendRateController rateController) {
+        this.publisher = publisher;
+        this.rateController = rateController;
+    }
+
+    /**
+     * @param zoom on-screen pixels per canvas pixel, tolerances are expressed in on-screen pixels
+     */
+    public void setZoom(float zoom) {
+        this.zoom = zoom;
+    }
+
+    public void touchDown(float x, float y, long time) {
+        pointsIn++;
+        pointsInCounter.increment();
+        pendingCount = 0;
+        velocity = 0;
+        lastX = x;
+        lastY = y;
+        lastTime = time;
+        emit(TOUCH_DOWN,
+             x,
+             y,
+             time);
+    }
+
+    public void touchMove(float x, float y, long time) {
+        pointsIn++;
+        pointsInCounter.increment();
+        updateVelocity(x,
+                       y,
+                       time);
+
+        if (Math.abs(x - anchorX) < MIN_DISTANCE && Math.abs(y - anchorY) < MIN_DISTANCE) {
+            pointsDroppedCounter.increment();
+            return;
+        }
+
+        final long interval = rateController.getMoveIntervalMs();
+        final long held = time - anchorTime;
+        if (pendingCount > 0
+            && (pendingCount == MAX_PENDING
+                || held >= getHoldMs()
+                || (held >= interval
+                    && (turnsSharply(x,
+                                     y)
+                        || exceedsTolerance(x,
+                                            y,
+                                            getTolerance()))))) {
+            flushPending(time);
+            // the anchor moved, this sample may now be too close to it to matter
+            if (Math.abs(x - anchorX) < MIN_DISTANCE && Math.abs(y - anchorY) < MIN_DISTANCE) {
+                pointsDroppedCounter.increment();
+                return;
+            }
+        }
+
+        pending[pendingCount * 2] = x;
+        pending[pendingCount * 2 + 1] = y;
+        pendingCount++;
+    }
+
+    /**
+     * @return uptime by which {@link #flushHeld(long)} must be called so no sample is held back for
+     * longer than the hold time while the finger rests, or -1 when nothing is held
+     */
+    public long getFlushDeadline() {
+        return pendingCount == 0 ? -1 : anchorTime + getHoldMs();
+    }
+
+    /**
+     * Publishes the held sample if it has been held for the full hold time.
+     */
+    public void flushHeld(long time) {
+        if (pendingCount > 0 && time - anchorTime >= getHoldMs()) {
+            flushPending(time);
+        }
+    }
+
+    public void touchUp(long time) {
+        pointsIn++;
+        pointsInCounter.increment();
+        if (pendingCount > 0) {
+            flushPending(time);
+        }
+        emit(TOUCH_UP,
+             -1,
+             -1,
+             time);
+
+        Log.d(TAG,
+              "sent " + pointsOut + " of " + pointsIn + " points, compression ratio = "
+              + getCompressionRatio());
+    }
+
+    /**
+     * @return raw touch samples seen per point published, since this simplifier was created
+     */
+    public float getCompressionRatio() {
+        return pointsOut == 0 ? 1 : (float) pointsIn / pointsOut;
+    }
+
+    public long getPointsIn() {
+        return pointsIn;
+    }
+
+    public long getPointsOut() {
+        return pointsOut;
+    }
+
+    // ===== DECIMATION ============================================================================
+
+    private long getHoldMs() {
+        return Math.max(MAX_HOLD_MS,
+                        rateController.getMoveIntervalMs());
+    }
+
+    private float getTolerance() {
+        final float scale = rateController.getToleranceScale();
+        return Math.min(MAX_TOLERANCE * scale,
+                        BASE_TOLERANCE * scale * (1 + VELOCITY_FACTOR * velocity)) / zoom;
+    }
+
+    private void updateVelocity(float x, float y, long time) {
+        final long dt = time - lastTime;
+        if (dt > 0) {
+            final float sample = (float) Math.hypot(x - lastX,
+                                                    y - lastY) / dt;
+            velocity += VELOCITY_SMOOTHING * (sample - velocity);
+        }
+        lastX = x;
+        lastY = y;
+        lastTime = time;
+    }
+
+    /**
+     * Whether publishing the chord anchor -> (x, y) would misplace any held sample by more than
+     * the tolerance.
+     */
+    private boolean exceedsTolerance(float x, float y, float tolerance) {
+        final float dx = x - anchorX;
+        final float dy = y - anchorY;
+        final float length = (float) Math.hypot(dx,
+                                                dy);
+        for (int i = 0; i < pendingCount; i++) {
+            final float px = pending[i * 2] - anchorX;
+            final float py = pending[i * 2 + 1] - anchorY;
+            final float distance = length == 0 ? (float) Math.hypot(px,
+                                                                    py)
+                                               : Math.abs(dx * py - dy * px) / length;
+            if (distance > tolerance) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether the stroke bends at the last held sample by more than {@link #MAX_TURN_ANGLE}, in
+     * which case that sample is a corner worth keeping.
+     */
+    private boolean turnsSharply(float x, float y) {
+        final float cornerX = pending[(pendingCount - 1) * 2];
+        final float cornerY = pending[(pendingCount - 1) * 2 + 1];
+        final float fromX = pendingCount > 1 ? pending[(pendingCount - 2) * 2] : anchorX;
+        final float fromY = pendingCount > 1 ? pending[(pendingCount - 2) * 2 + 1] : anchorY;
+        final float inX = cornerX - fromX;
+        final float inY = cornerY - fromY;
+        final float outX = x - cornerX;
+        final float outY = y - cornerY;
+        if ((inX == 0 && inY == 0) || (outX == 0 && outY == 0)) {
+            return false;
+        }
+        final double angle = Math.abs(Math.atan2(inX * outY - inY * outX,
+                                                 inX * outX + inY * outY));
+        return angle > MAX_TURN_ANGLE;
+    }
+
+    private void flushPending(long time) {
+        final float x = pending[(pendingCount - 1) * 2];
+        final float y = pending[(pendingCount - 1) * 2 + 1];
+        // everything held before the published sample is covered by the chord leading to it
+        pointsDroppedCounter.add(pendingCount - 1);
+        pendingCount = 0;
+        emit(TOUCH_MOVE,
+             x,
+             y,
+             time);
+    }
+
+    private void emit(int action, float x, float y, long time) {
+        pointsOut++;
+        pointsOutCounter.increment();
+        if (action != TOUCH_UP) {
+            anchorX = x;
+            anchorY = y;
+            anchorTime = time;
+        }
+        publisher.publish(action,
+                          x,
+                          y);
+    }
+
+    public interface Publisher {
+        void publish(int action, float x, float y);
+    }
+}
@@ -0,0 +1,192 @@
+package net.ralphpina.drawwithme;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Draws a large batch of strokes using every core.
+ * <p>
+ * The canvas is split into {@link #TILE_SIZE} square tiles and every stroke is binned into the
+ * tiles its bounding box touches, keeping draw order within each tile. Tiles with strokes in them
+ * are rasterized into their own bitmaps in parallel, then composited onto the target in one pass on
+ * the calling thread. The calling thread blocks until that is done, so it should not be the main
+ * thread.
+ */
+public class TileRasterizer {
+
+    static final int TILE_SIZE = 256;
+
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(
+            Runtime.getRuntime()
+                   .availableProcessors(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable,
+                                                     "TileRasterizer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final int width;
+    private final int height;
+    private final int columns;
+    private final int rows;
+
+    public TileRasterizer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    /**
+     * Draws {@code strokes}, in order, on top of whatever {@code target} already holds.
+     *
+     * @throws ExecutionException if a tile could not be rasterized, {@code target} is left partly
+     *                            drawn and every tile has been recycled
+     */
+    public void draw(List<HistoryStroke> strokes, Canvas target) throws InterruptedException,
+                                                                        ExecutionException {
+        if (columns == 0 || rows == 0) {
+            return;
+        }
+        final List<List<HistoryStroke>> bins = bin(strokes);
+
+        final List<Callable<Bitmap>> tasks = new ArrayList<>();
+        final List<Integer> tileIndices = new ArrayList<>();
+        for (int i = 0; i < bins.size(); i++) {
+            final List<HistoryStroke> bin = bins.get(i);
+            if (bin != null) {
+                tasks.add(newTileTask(i,
+                                      bin));
+                tileIndices.add(i);
+            }
+        }
+
+        final List<Future<Bitmap>> tiles = POOL.invokeAll(tasks);
+        // keep going after a failure so the tiles that did get rasterized are still recycled
+        ExecutionException failure = null;
+        for (int i = 0; i < tiles.size(); i++) {
+            final Bitmap tile;
+            try {
+                tile = tiles.get(i)
+                            .get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+                continue;
+            }
+            if (failure == null) {
+                final int index = tileIndices.get(i);
+                target.drawBitmap(tile,
+                                  (index % columns) * TILE_SIZE,
+                                  (index / columns) * TILE_SIZE,
+                                  null);
+            }
+            tile.recycle();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private List<List<HistoryStroke>> bin(List<HistoryStroke> strokes) {
+        final List<List<HistoryStroke>> bins = new ArrayList<>(columns * rows);
+        for (int i = 0; i < columns * rows; i++) {
+            bins.add(null);
+        }
+
+        for (HistoryStroke stroke : strokes) {
+            final float[] points = stroke.getPoints();
+            if (points.length < 2) {
+                continue;
+            }
+            // the path's curves stay within the hull of its points, the stroke width pads that
+            float left = points[0];
+            float top = points[1];
+            float right = left;
+            float bottom = top;
+            for (int i = 2; i + 1 < points.length; i += 2) {
+                left = Math.min(left,
+                                points[i]);
+                right = Math.max(right,
+                                 points[i]);
+                top = Math.min(top,
+                               points[i + 1]);
+                bottom = Math.max(bottom,
+                                  points[i + 1]);
+            }
+            // +1 for anti-aliasing
+            final float padding = stroke.getWidth() / 2 + 1;
+            if (right + padding < 0 || bottom + padding < 0 || left - padding >= width
+                || top - padding >= height) {
+                continue;
+            }
+
+            final int firstColumn = clamp((int) Math.floor((left - padding) / TILE_SIZE),
+                                          columns);
+            final int lastColumn = clamp((int) Math.floor((right + padding) / TILE_SIZE),
+                                         columns);
+            final int firstRow = clamp((int) Math.floor((top - padding) / TILE_SIZE),
+                                       rows);
+            final int lastRow = clamp((int) Math.floor((bottom + padding) / TILE_SIZE),
+                                      rows);
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int column = firstColumn; column <= lastColumn; column++) {
+                    final int index = row * columns + column;
+                    List<HistoryStroke> bin = bins.get(index);
+                    if (bin == null) {
+                        bin = new ArrayList<>();
+                        bins.set(index,
+                                 bin);
+                    }
+                    bin.add(stroke);
+                }
+            }
+        }
+        return bins;
+    }
+
+    private Callable<Bitmap> newTileTask(final int index, final List<HistoryStroke> bin) {
+        return new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() {
+                final int left = (index % columns) * TILE_SIZE;
+                final int top = (index / columns) * TILE_SIZE;
+                final Bitmap tile = Bitmap.createBitmap(Math.min(TILE_SIZE,
+                                                                 width - left),
+                                                        Math.min(TILE_SIZE,
+                                                                 height - top),
+                                                        Bitmap.Config.ARGB_8888);
+                final Canvas canvas = new Canvas(tile);
+                canvas.translate(-left,
+                                 -top);
+                final Paint paint = HistoryStroke.newPaint();
+                for (HistoryStroke stroke : bin) {
+                    stroke.draw(canvas,
+                                paint);
+                }
+                return tile;
+            }
+        };
+    }
+
+    private static int clamp(int value, int count) {
+        return Math.max(0,
+                        Math.min(count - 1,
+                                 value));
+    }
+}
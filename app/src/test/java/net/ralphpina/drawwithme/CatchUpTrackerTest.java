@@ -0,0 +1,293 @@
+package net.ralphpina.drawwithme;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static net.ralphpina.drawwithme.CatchUpTracker.PAGE_LOST;
+import static net.ralphpina.drawwithme.CatchUpTracker.PAGE_NEXT;
+import static net.ralphpina.drawwithme.CatchUpTracker.PAGE_STALE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CatchUpTrackerTest {
+
+    private FakeClockTracker tracker;
+
+    @Before
+    public void setUp() throws Exception {
+        tracker = new FakeClockTracker();
+    }
+
+    @Test
+    public void commit_ofAStrokeDrawnLive_movesOnWithoutACatchUp() throws Exception {
+        drawLive("a",
+                 10,
+                 14);
+        assertFalse(tracker.onCommitted(1,
+                                        "a",
+                                        10,
+                                        14));
+        drawLive("b",
+                 -3,
+                 2);
+        assertFalse(tracker.onCommitted(2,
+                                        "b",
+                                        -3,
+                                        2));
+
+        assertEquals(2,
+                     tracker.getDrawnThrough());
+    }
+
+    @Test
+    public void commit_ofAStrokeBegunBeforeWeSubscribed_asksForACatchUp() throws Exception {
+        // the TOUCH_DOWN went out before we were listening
+        drawLive("a",
+                 11,
+                 14);
+        assertTrue(tracker.onCommitted(1,
+                                       "a",
+                                       10,
+                                       14));
+
+        assertEquals(0,
+                     tracker.getDrawnThrough());
+        assertEquals(1,
+                     tracker.getCatchUpFrom());
+    }
+
+    @Test
+    public void commit_ofAStrokeThatLostAnAction_asksForACatchUp() throws Exception {
+        drawLive("a",
+                 10,
+                 12);
+        drawLive("a",
+                 14,
+                 20);
+        assertTrue(tracker.onCommitted(1,
+                                       "a",
+                                       10,
+                                       20));
+        assertEquals(0,
+                     tracker.getDrawnThrough());
+    }
+
+    @Test
+    public void actionSequences_wrapAround() throws Exception {
+        drawLive("a",
+                 Integer.MAX_VALUE - 1,
+                 Integer.MAX_VALUE);
+        drawLive("a",
+                 Integer.MIN_VALUE,
+                 Integer.MIN_VALUE + 1);
+        assertFalse(tracker.onCommitted(1,
+                                        "a",
+                                        Integer.MAX_VALUE - 1,
+                                        Integer.MIN_VALUE + 1));
+        assertEquals(1,
+                     tracker.getDrawnThrough());
+    }
+
+    @Test
+    public void lostCommit_isCaughtUpOnWithoutRedrawingWhatCameAfterIt() throws Exception {
+        drawLive("a",
+                 0,
+                 29);
+        assertFalse(tracker.onCommitted(1,
+                                        "a",
+                                        0,
+                                        9));
+        // the announcement of stroke 2, actions 10 to 19, went missing
+        assertTrue(tracker.onCommitted(3,
+                                       "a",
+                                       20,
+                                       29));
+        assertEquals(1,
+                     tracker.getDrawnThrough());
+
+        final int request = tracker.startCatchUp();
+        assertEquals(2,
+                     tracker.getCatchUpFrom());
+        assertEquals(PAGE_NEXT,
+                     tracker.onPage(request,
+                                    0));
+        // both strokes were drawn live, so the catch up leaves them out
+        assertTrue(tracker.isDrawn(2,
+                                   "a",
+                                   10,
+                                   19));
+        assertTrue(tracker.isDrawn(3,
+                                   "a",
+                                   20,
+                                   29));
+        assertFalse(tracker.onPageDrawn(3,
+                                        true,
+                                        3));
+
+        assertEquals(3,
+                     tracker.getDrawnThrough());
+        assertFalse(tracker.isCatchingUp());
+    }
+
+    @Test
+    public void pages_moveOnOneAtATime() throws Exception {
+        tracker.setDrawnThrough(100);
+        final int request = tracker.startCatchUp();
+        assertEquals(101,
+                     tracker.getCatchUpFrom());
+
+        assertEquals(PAGE_NEXT,
+                     tracker.onPage(request,
+                                    0));
+        assertFalse(tracker.onPageDrawn(150,
+                                        false,
+                                        300));
+        assertEquals(150,
+                     tracker.getDrawnThrough());
+        assertTrue(tracker.isCatchingUp());
+
+        assertEquals(PAGE_NEXT,
+                     tracker.onPage(request,
+                                    1));
+        // the room moved on while the last page was being put together
+        assertFalse(tracker.onPageDrawn(290,
+                                        true,
+                                        300));
+        assertEquals(300,
+                     tracker.getDrawnThrough());
+        assertFalse(tracker.isCatchingUp());
+    }
+
+    @Test
+    public void page_ofAnEarlierRequestIsStale() throws Exception {
+        final int first = tracker.startCatchUp();
+        final int second = tracker.startCatchUp();
+
+        assertEquals(PAGE_STALE,
+                     tracker.onPage(first,
+                                    0));
+        assertEquals(PAGE_NEXT,
+                     tracker.onPage(second,
+                                    0));
+        tracker.onPageDrawn(0,
+                            true,
+                            0);
+        assertEquals(PAGE_STALE,
+                     tracker.onPage(second,
+                                    1));
+    }
+
+    @Test
+    public void page_afterAMissingOneStopsTheCatchUpWhereItGot() throws Exception {
+        final int request = tracker.startCatchUp();
+        assertEquals(PAGE_NEXT,
+                     tracker.onPage(request,
+                                    0));
+        tracker.onPageDrawn(40,
+                            false,
+                            100);
+
+        assertEquals(PAGE_LOST,
+                     tracker.onPage(request,
+                                    2));
+        assertFalse(tracker.isCatchingUp());
+        assertEquals(41,
+                     tracker.getCatchUpFrom());
+    }
+
+    @Test
+    public void pageNotDrawn_keepsWhatEarlierPagesDrew() throws Exception {
+        final int request = tracker.startCatchUp();
+        tracker.onPage(request,
+                       0);
+        tracker.onPageDrawn(40,
+                            false,
+                            100);
+        tracker.onPage(request,
+                       1);
+        tracker.onPageNotDrawn();
+
+        assertFalse(tracker.isCatchingUp());
+        assertEquals(40,
+                     tracker.getDrawnThrough());
+    }
+
+    @Test
+    public void missedWhileCatchingUp_waitsForTheCatchUpThenAsksAgain() throws Exception {
+        final int request = tracker.startCatchUp();
+        // not drawn live, and committed after the catch up was answered
+        assertFalse(tracker.onCommitted(11,
+                                        "a",
+                                        0,
+                                        5));
+
+        tracker.onPage(request,
+                       0);
+        assertTrue(tracker.onPageDrawn(10,
+                                       true,
+                                       10));
+        assertEquals(11,
+                     tracker.getCatchUpFrom());
+    }
+
+    @Test
+    public void catchUpThatNeverAnswers_isStartedOverByACommitAfterTheTimeout() throws Exception {
+        tracker.startCatchUp();
+        tracker.time += CatchUpTracker.PAGE_TIMEOUT_MS - 1;
+        assertFalse(tracker.onCommitted(1,
+                                        "a",
+                                        0,
+                                        5));
+        tracker.time += 1;
+        assertTrue(tracker.onCommitted(2,
+                                       "a",
+                                       6,
+                                       9));
+    }
+
+    @Test
+    public void drawnAhead_isBounded() throws Exception {
+        drawLive("a",
+                 0,
+                 CatchUpTracker.MAX_DRAWN_AHEAD + 10);
+        // stroke 1 was never announced
+        for (int i = 0; i < CatchUpTracker.MAX_DRAWN_AHEAD + 10; i++) {
+            tracker.onCommitted(i + 2,
+                                "a",
+                                i,
+                                i);
+        }
+
+        final int request = tracker.startCatchUp();
+        tracker.onPage(request,
+                       0);
+        tracker.onPageDrawn(1,
+                            false,
+                            0);
+        // the newest ones were forgotten, they count once a catch up has them
+        assertEquals(CatchUpTracker.MAX_DRAWN_AHEAD + 1,
+                     tracker.getDrawnThrough());
+    }
+
+    private void drawLive(String clientId, int first, int last) {
+        // may wrap around, so stop on reaching last rather than on passing it
+        int sequence = first;
+        tracker.onActionDrawn(clientId,
+                              sequence);
+        while (sequence != last) {
+            tracker.onActionDrawn(clientId,
+                                  ++sequence);
+        }
+    }
+
+    private static class FakeClockTracker extends CatchUpTracker {
+
+        long time = 1000000;
+
+        @Override
+        long now() {
+            return time;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package net.ralphpina.drawwithme;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class MetricsRegistryTest {
+
+    private MetricsRegistry.Histogram histogram;
+
+    @Before
+    public void setUp() throws Exception {
+        histogram = new MetricsRegistry.Histogram();
+    }
+
+    @Test
+    public void histogram_isAllZerosWhenEmpty() throws Exception {
+        assertEquals(0,
+                     histogram.getCount());
+        assertEquals(0,
+                     histogram.getMean());
+        assertEquals(0,
+                     histogram.getMax());
+        assertEquals(0,
+                     histogram.getPercentile(50));
+    }
+
+    @Test
+    public void histogram_reportsTheUpperBoundOfThePowerOfTwoBucket() throws Exception {
+        histogram.record(0);
+        assertEquals(0,
+                     histogram.getPercentile(100));
+
+        histogram = new MetricsRegistry.Histogram();
+        histogram.record(1);
+        assertEquals(1,
+                     histogram.getPercentile(100));
+
+        histogram = new MetricsRegistry.Histogram();
+        histogram.record(4);
+        assertEquals(7,
+                     histogram.getPercentile(100));
+
+        histogram = new MetricsRegistry.Histogram();
+        histogram.record(7);
+        assertEquals(7,
+                     histogram.getPercentile(100));
+
+        histogram = new MetricsRegistry.Histogram();
+        histogram.record(8);
+        assertEquals(15,
+                     histogram.getPercentile(100));
+
+        histogram = new MetricsRegistry.Histogram();
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE,
+                     histogram.getPercentile(100));
+    }
+
+    @Test
+    public void histogram_percentileIsTheBucketHoldingThatRank() throws Exception {
+        // 90 values in [8, 16) and 10 in [1024, 2048)
+        for (int i = 0; i < 90; i++) {
+            histogram.record(10);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(1500);
+        }
+        assertEquals(15,
+                     histogram.getPercentile(1));
+        assertEquals(15,
+                     histogram.getPercentile(50));
+        assertEquals(15,
+                     histogram.getPercentile(90));
+        // rank 91 is the first of the large values
+        assertEquals(2047,
+                     histogram.getPercentile(91));
+        assertEquals(2047,
+                     histogram.getPercentile(99));
+        assertEquals(2047,
+                     histogram.getPercentile(100));
+    }
+
+    @Test
+    public void histogram_percentileRankRoundsUp() throws Exception {
+        histogram.record(1);
+        histogram.record(1);
+        histogram.record(100);
+        // rank ceil(3 * 50 / 100) = 2 is still a 1, ceil(3 * 67 / 100) = 3 is the 100
+        assertEquals(1,
+                     histogram.getPercentile(50));
+        assertEquals(1,
+                     histogram.getPercentile(66));
+        assertEquals(127,
+                     histogram.getPercentile(67));
+    }
+
+    @Test
+    public void histogram_tracksCountMeanAndMax() throws Exception {
+        histogram.record(3);
+        histogram.record(5);
+        histogram.record(10);
+        assertEquals(3,
+                     histogram.getCount());
+        assertEquals(6,
+                     histogram.getMean());
+        assertEquals(10,
+                     histogram.getMax());
+    }
+
+    @Test
+    public void histogram_clampsNegativeValuesToZero() throws Exception {
+        histogram.record(-5);
+        assertEquals(1,
+                     histogram.getCount());
+        assertEquals(0,
+                     histogram.getMean());
+        assertEquals(0,
+                     histogram.getMax());
+        assertEquals(0,
+                     histogram.getPercentile(100));
+    }
+}
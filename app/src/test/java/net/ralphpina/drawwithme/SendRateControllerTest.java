@@ -0,0 +1,181 @@
+package net.ralphpina.drawwithme;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static net.ralphpina.drawwithme.SendRateController.LEVEL_BUSY;
+import static net.ralphpina.drawwithme.SendRateController.LEVEL_CLEAR;
+import static net.ralphpina.drawwithme.SendRateController.LEVEL_CONGESTED;
+import static org.junit.Assert.assertEquals;
+
+public class SendRateControllerTest {
+
+    private FakeClockController controller;
+
+    @Before
+    public void setUp() throws Exception {
+        controller = new FakeClockController();
+    }
+
+    @Test
+    public void inFlight_raisesTheLevelAtEachThreshold() throws Exception {
+        publish(15);
+        assertEquals(LEVEL_CLEAR,
+                     controller.getLevel());
+        publish(1);
+        assertEquals(LEVEL_BUSY,
+                     controller.getLevel());
+        publish(31);
+        assertEquals(LEVEL_BUSY,
+                     controller.getLevel());
+        publish(1);
+        assertEquals(LEVEL_CONGESTED,
+                     controller.getLevel());
+    }
+
+    @Test
+    public void inFlight_levelComesDownOneStepPerRecoveryPeriodBelowHalfTheThreshold()
+            throws Exception {
+        publish(48);
+        assertEquals(LEVEL_CONGESTED,
+                     controller.getLevel());
+
+        // under the threshold but not under half of it
+        complete(24);
+        controller.time += 5000;
+        assertEquals(LEVEL_CONGESTED,
+                     controller.getLevel());
+
+        complete(1);
+        assertEquals(LEVEL_CONGESTED,
+                     controller.getLevel());
+        controller.time += 999;
+        assertEquals(LEVEL_CONGESTED,
+                     controller.getLevel());
+        controller.time += 1;
+        assertEquals(LEVEL_BUSY,
+                     controller.getLevel());
+
+        complete(23);
+        assertEquals(LEVEL_BUSY,
+                     controller.getLevel());
+        controller.time += 1000;
+        assertEquals(LEVEL_CLEAR,
+                     controller.getLevel());
+    }
+
+    @Test
+    public void inFlight_crossingAThresholdAgainRestartsRecovery() throws Exception {
+        publish(16);
+        complete(16);
+        controller.time += 500;
+        assertEquals(LEVEL_BUSY,
+                     controller.getLevel());
+
+        publish(16);
+        controller.time += 500;
+        assertEquals(LEVEL_BUSY,
+                     controller.getLevel());
+        complete(16);
+        controller.time += 999;
+        assertEquals(LEVEL_BUSY,
+                     controller.getLevel());
+        controller.time += 1;
+        assertEquals(LEVEL_CLEAR,
+                     controller.getLevel());
+    }
+
+    @Test
+    public void connectionLost_forgetsPublishesInFlight() throws Exception {
+        publish(48);
+        controller.onConnectionLost();
+        assertEquals(0,
+                     controller.getInFlight());
+    }
+
+    @Test
+    public void rtt_raisesTheLevelFromEchoes() throws Exception {
+        echo(299);
+        assertEquals(LEVEL_CLEAR,
+                     controller.getLevel());
+
+        controller = new FakeClockController();
+        echo(300);
+        assertEquals(LEVEL_BUSY,
+                     controller.getLevel());
+
+        controller = new FakeClockController();
+        echo(800);
+        assertEquals(LEVEL_CONGESTED,
+                     controller.getLevel());
+    }
+
+    @Test
+    public void rtt_decaysWhileTheLinkIsIdle() throws Exception {
+        echo(900);
+        assertEquals(LEVEL_CONGESTED,
+                     controller.getLevel());
+
+        controller.time += 999;
+        assertEquals(900,
+                     controller.getSmoothedRttMs());
+        controller.time += 1;
+        assertEquals(450,
+                     controller.getSmoothedRttMs());
+        controller.time += 1000;
+        assertEquals(225,
+                     controller.getSmoothedRttMs());
+
+        // a few idle seconds bring a congested link back to clear
+        controller.time += 10000;
+        controller.getLevel();
+        controller.time += 1000;
+        controller.getLevel();
+        controller.time += 1000;
+        assertEquals(LEVEL_CLEAR,
+                     controller.getLevel());
+        assertEquals(0,
+                     controller.getSmoothedRttMs());
+    }
+
+    @Test
+    public void rtt_doesNotDecayWhileSending() throws Exception {
+        echo(900);
+        for (int i = 0; i < 10; i++) {
+            controller.time += 500;
+            controller.nextSequence();
+        }
+        assertEquals(900,
+                     controller.getSmoothedRttMs());
+        assertEquals(LEVEL_CONGESTED,
+                     controller.getLevel());
+    }
+
+    private void publish(int count) {
+        for (int i = 0; i < count; i++) {
+            controller.onPublished();
+        }
+    }
+
+    private void complete(int count) {
+        for (int i = 0; i < count; i++) {
+            controller.onDeliveryComplete();
+        }
+    }
+
+    private void echo(long rtt) {
+        final int sequence = controller.nextSequence();
+        controller.time += rtt;
+        controller.onEcho(sequence);
+    }
+
+    private static class FakeClockController extends SendRateController {
+
+        long time = 1000000;
+
+        @Override
+        long now() {
+            return time;
+        }
+    }
+}
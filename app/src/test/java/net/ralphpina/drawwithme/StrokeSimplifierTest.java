@@ -0,0 +1,144 @@
+package net.ralphpina.drawwithme;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static net.ralphpina.drawwithme.ProtobufMessages.DrawAction.TOUCH_DOWN;
+import static net.ralphpina.drawwithme.ProtobufMessages.DrawAction.TOUCH_MOVE;
+import static net.ralphpina.drawwithme.ProtobufMessages.DrawAction.TOUCH_UP;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StrokeSimplifierTest {
+
+    // x, y pairs of the published points, and their actions
+    private List<float[]>    published;
+    private List<Integer>    actions;
+    private StrokeSimplifier simplifier;
+
+    @Before
+    public void setUp() throws Exception {
+        published = new ArrayList<>();
+        actions = new ArrayList<>();
+        simplifier = new StrokeSimplifier(new StrokeSimplifier.Publisher() {
+            @Override
+            public void publish(int action, float x, float y) {
+                actions.add(action);
+                if (action != TOUCH_UP) {
+                    published.add(new float[]{x, y});
+                }
+            }
+        },
+                                          new SendRateController());
+    }
+
+    @Test
+    public void sineStroke_isCompressedWithinTheErrorBound() throws Exception {
+        // a slow wave sampled every 8ms, like a finger drawing at ~1px/ms
+        final List<float[]> samples = new ArrayList<>();
+        for (int i = 0; i <= 400; i++) {
+            samples.add(new float[]{100 + i * 2, 300 + 80 * (float) Math.sin(i / 40.0)});
+        }
+
+        long time = 1000;
+        simplifier.touchDown(samples.get(0)[0],
+                             samples.get(0)[1],
+                             time);
+        for (int i = 1; i < samples.size(); i++) {
+            time += 8;
+            simplifier.touchMove(samples.get(i)[0],
+                                 samples.get(i)[1],
+                                 time);
+        }
+        simplifier.touchUp(time + 8);
+
+        assertEquals(TOUCH_DOWN,
+                     (int) actions.get(0));
+        assertEquals(TOUCH_UP,
+                     (int) actions.get(actions.size() - 1));
+        assertTrue("compression ratio " + simplifier.getCompressionRatio(),
+                   simplifier.getCompressionRatio() > 3);
+
+        for (float[] sample : samples) {
+            final float distance = distanceToPolyline(sample,
+                                                      published);
+            assertTrue("sample " + sample[0] + ", " + sample[1] + " is " + distance + "px off",
+                       distance <= StrokeSimplifier.MAX_TOLERANCE);
+        }
+    }
+
+    @Test
+    public void restingFinger_heldSampleIsFlushedAtTheDeadline() throws Exception {
+        simplifier.touchDown(0,
+                             0,
+                             1000);
+        simplifier.touchMove(10,
+                             0,
+                             1008);
+        assertEquals(1,
+                     published.size());
+
+        final long deadline = simplifier.getFlushDeadline();
+        assertEquals(1000 + StrokeSimplifier.MAX_HOLD_MS,
+                     deadline);
+
+        simplifier.flushHeld(deadline - 1);
+        assertEquals(1,
+                     published.size());
+        simplifier.flushHeld(deadline);
+        assertEquals(2,
+                     published.size());
+        assertEquals(TOUCH_MOVE,
+                     (int) actions.get(1));
+        assertEquals(-1,
+                     simplifier.getFlushDeadline());
+    }
+
+    @Test
+    public void publishedMoves_areNeverWithinTheRemoteTouchTolerance() throws Exception {
+        long time = 1000;
+        simplifier.touchDown(0,
+                             0,
+                             time);
+        // a zig-zag makes the simplifier flush on almost every sample
+        for (int i = 1; i < 200; i++) {
+            time += 8;
+            simplifier.touchMove(i * 3,
+                                 (i % 2) * 5,
+                                 time);
+        }
+        simplifier.touchUp(time);
+
+        for (int i = 1; i < published.size(); i++) {
+            final float dx = Math.abs(published.get(i)[0] - published.get(i - 1)[0]);
+            final float dy = Math.abs(published.get(i)[1] - published.get(i - 1)[1]);
+            assertTrue(dx >= StrokeSimplifier.MIN_DISTANCE || dy >= StrokeSimplifier.MIN_DISTANCE);
+        }
+    }
+
+    private static float distanceToPolyline(float[] point, List<float[]> polyline) {
+        float best = Float.MAX_VALUE;
+        for (int i = 1; i < polyline.size(); i++) {
+            best = Math.min(best,
+                            distanceToSegment(point,
+                                              polyline.get(i - 1),
+                                              polyline.get(i)));
+        }
+        return best;
+    }
+
+    private static float distanceToSegment(float[] p, float[] a, float[] b) {
+        final float dx = b[0] - a[0];
+        final float dy = b[1] - a[1];
+        final float lengthSquared = dx * dx + dy * dy;
+        float t = lengthSquared == 0 ? 0 : ((p[0] - a[0]) * dx + (p[1] - a[1]) * dy) / lengthSquared;
+        t = Math.max(0,
+                     Math.min(1,
+                              t));
+        return (float) Math.hypot(p[0] - (a[0] + t * dx),
+                                  p[1] - (a[1] + t * dy));
+    }
+}